@@ -0,0 +1,600 @@
+package com.sul;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Resolved trees of a source file, cached next to it as <file>c. The file starts with the SHA-256 of the
+ * source, a stale or foreign cache is simply ignored. Statements are written right after the Resolver and
+ * before the optimizer, which rewrites trees in place and depends on the command line, so every slot and
+ * capture the Resolver filled in comes back without running it again. Bump VERSION whenever a node or a
+ * resolved field changes.
+ */
+final class AstCache {
+    private static final int MAGIC = 0x53554c43;
+    private static final int VERSION = 5;
+    static final boolean ENABLED = !"false".equals(System.getProperty("sul.cache"));
+    // larger scripts keep streaming through the parser instead of being held in memory to hash and cache
+    static final long MAX_SOURCE = Long.getLong("sul.cache.maxBytes", 1 << 20);
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+    private static final Expr.Binding[] BINDINGS = Expr.Binding.values();
+
+    // statement tags, 0 ends the file
+    private static final int EXPRESSION = 1, PRINT = 2, DECL = 3, BLOCK = 4, IF = 5, WHILE = 6, FOR = 7,
+            LOOP_CONTROL = 8, IMPORT = 9, FUNCTION = 10, RETURN = 11, LAZY_FUNCTION = 12;
+    // expression tags, 0 is a missing expression
+    private static final int LITERAL = 1, BINARY = 2, UNARY = 3, GROUPING = 4, VARIABLE = 5, ASSIGMENT = 6,
+            OR = 7, AND = 8, CALL = 9, ARRAY = 10, INDEX = 11, INDEX_ASSIGMENT = 12, MAP = 13;
+    // literal and token value tags
+    private static final int NULL = 0, NUMBER = 1, STRING = 2, TRUE = 3, FALSE = 4;
+
+    private AstCache() {
+    }
+    static Path pathFor(Path source) {
+        return source.resolveSibling(source.getFileName() + "c");
+    }
+    static byte[] hash(byte[] source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the cached statements, null when there is no cache for exactly this source
+    static List<Stmt> load(Path source, byte[] hash) {
+        Path cache = pathFor(source);
+        if (!Files.isReadable(cache)) return null;
+        try {
+            Input in = new Input(Files.readAllBytes(cache));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readBoolean() != Parser.LAZY) return null;
+            if (!Arrays.equals(hash, in.read(hash.length))) return null;
+            // read whole, so a damaged cache falls back to parsing before anything ran
+            return new Reader(in).readAll();
+        } catch (IOException | RuntimeException e) {
+            // an unreadable cache is a missing one
+            return null;
+        }
+    }
+    // the same format kept in memory, each read builds a new tree that shares nothing with the others
+    static byte[] serialize(List<Stmt> statements) {
+        Writer writer = new Writer(null, null);
+        for (Stmt stmt : statements) writer.write(stmt);
+        writer.out.writeByte(0);
+        return Arrays.copyOf(writer.out.bytes, writer.out.size);
+    }
+    static List<Stmt> deserialize(byte[] tree) {
+        return new Reader(new Input(tree)).readAll();
+    }
+
+    // collects statements while the script runs, written out only once the whole file parsed and resolved
+    static final class Writer {
+        private final Path cache;
+        private final Output out = new Output();
+        private final Map<String, Integer> strings = new HashMap<>();
+        // set when a statement cannot be cached, the whole file is then left uncached
+        private boolean failed = false;
+
+        Writer(Path source, byte[] hash) {
+            this.cache = source == null ? null : pathFor(source);
+            if (source == null) return;
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // a tree cached with deferred bodies would defer them in an eager run too, and the other way round
+            out.writeBoolean(Parser.LAZY);
+            out.write(hash);
+        }
+        void add(Stmt stmt) {
+            if (failed) return;
+            try {
+                write(stmt);
+            } catch (IllegalStateException e) {
+                // a node or literal this format does not know
+                failed = true;
+            }
+        }
+        // a cache that cannot be written only costs the next run a parse
+        void finish() {
+            if (failed) return;
+            try {
+                out.writeByte(0);
+                Path temp = Files.createTempFile(cache.toAbsolutePath().getParent(), cache.getFileName().toString(), ".tmp");
+                try (OutputStream file = Files.newOutputStream(temp)) {
+                    file.write(out.bytes, 0, out.size);
+                }
+                Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | UnsupportedOperationException e) {
+                // read-only directory or file system without atomic moves
+            }
+        }
+
+        private void write(Stmt stmt){
+            if (stmt instanceof Stmt.Expression) {
+                out.writeByte(EXPRESSION);
+                write(((Stmt.Expression) stmt).expr);
+            } else if (stmt instanceof Stmt.Print) {
+                out.writeByte(PRINT);
+                write(((Stmt.Print) stmt).expr);
+            } else if (stmt instanceof Stmt.Decl) {
+                Stmt.Decl decl = (Stmt.Decl) stmt;
+                out.writeByte(DECL);
+                write(decl.identifier);
+                write(decl.expr);
+                out.writeVarint(decl.slot + 1);
+                out.writeBoolean(decl.captured);
+            } else if (stmt instanceof Stmt.Block) {
+                Stmt.Block block = (Stmt.Block) stmt;
+                out.writeByte(BLOCK);
+                writeStatements(block.stmts);
+                out.writeVarint(block.slotCount + 1);
+            } else if (stmt instanceof Stmt.IfStmt) {
+                Stmt.IfStmt ifStmt = (Stmt.IfStmt) stmt;
+                out.writeByte(IF);
+                write(ifStmt.condition);
+                write(ifStmt.thenStmt);
+                writeOptional(ifStmt.elseStmt);
+            } else if (stmt instanceof Stmt.WhileStmt) {
+                Stmt.WhileStmt whileStmt = (Stmt.WhileStmt) stmt;
+                out.writeByte(WHILE);
+                write(whileStmt.condition);
+                write(whileStmt.body);
+            } else if (stmt instanceof Stmt.ForStmt) {
+                Stmt.ForStmt forStmt = (Stmt.ForStmt) stmt;
+                out.writeByte(FOR);
+                writeOptional(forStmt.initializer);
+                write(forStmt.condition);
+                write(forStmt.increment);
+                write(forStmt.body);
+                out.writeVarint(forStmt.slotCount + 1);
+            } else if (stmt instanceof Stmt.LoopControlStmt) {
+                out.writeByte(LOOP_CONTROL);
+                write(((Stmt.LoopControlStmt) stmt).keyWord);
+            } else if (stmt instanceof Stmt.ImportStmt) {
+                Stmt.ImportStmt importStmt = (Stmt.ImportStmt) stmt;
+                out.writeByte(IMPORT);
+                write(importStmt.keyWord);
+                writeString(importStmt.file);
+            } else if (stmt instanceof Stmt.FunctionDecl && ((Stmt.FunctionDecl) stmt).isLazy()) {
+                // still only tokens, the next run defers the body again
+                Stmt.FunctionDecl function = (Stmt.FunctionDecl) stmt;
+                out.writeByte(LAZY_FUNCTION);
+                write(function.name);
+                out.writeVarint(function.args.size());
+                for (Token arg : function.args) write(arg);
+                out.writeVarint(function.lazy.tokens.size());
+                for (Token token : function.lazy.tokens) write(token);
+                write(function.lazy.end);
+                out.writeVarint(function.slot + 1);
+            } else if (stmt instanceof Stmt.FunctionDecl) {
+                Stmt.FunctionDecl function = (Stmt.FunctionDecl) stmt;
+                out.writeByte(FUNCTION);
+                write(function.name);
+                out.writeVarint(function.args.size());
+                for (Token arg : function.args) write(arg);
+                writeStatements(function.body);
+                out.writeVarint(function.slot + 1);
+                out.writeVarint(function.slotCount + 1);
+                out.writeBoolean(function.captured);
+                writeInts(function.captures);
+                writeInts(function.cellParams);
+            } else if (stmt instanceof Stmt.ReturnStmt) {
+                Stmt.ReturnStmt returnStmt = (Stmt.ReturnStmt) stmt;
+                out.writeByte(RETURN);
+                write(returnStmt.keyWord);
+                write(returnStmt.value);
+                out.writeBoolean(returnStmt.tailCall);
+            } else {
+                throw new IllegalStateException("cannot cache " + stmt.getClass().getSimpleName());
+            }
+        }
+        private void writeOptional(Stmt stmt){
+            out.writeBoolean(stmt != null);
+            if (stmt != null) write(stmt);
+        }
+        // captures may be negative, so they are zigzag encoded instead of stored + 1
+        private void writeInts(int[] values){
+            out.writeVarint(values.length);
+            for (int value : values) out.writeVarint(value >= 0 ? value * 2 : -1 - value * 2);
+        }
+        private void writeStatements(List<Stmt> statements){
+            out.writeVarint(statements.size());
+            for (Stmt stmt : statements) write(stmt);
+        }
+        private void write(Expr expr){
+            if (expr == null) {
+                out.writeByte(0);
+            } else if (expr instanceof Expr.Literal) {
+                out.writeByte(LITERAL);
+                writeValue(((Expr.Literal) expr).value);
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                out.writeByte(BINARY);
+                write(binary.left);
+                write(binary.operator);
+                write(binary.right);
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary) expr;
+                out.writeByte(UNARY);
+                write(unary.operator);
+                write(unary.expression);
+            } else if (expr instanceof Expr.Grouping) {
+                out.writeByte(GROUPING);
+                write(((Expr.Grouping) expr).expr);
+            } else if (expr instanceof Expr.Variable) {
+                Expr.Variable variable = (Expr.Variable) expr;
+                out.writeByte(VARIABLE);
+                write(variable.name);
+                out.writeVarint(variable.binding.ordinal());
+                out.writeVarint(variable.slot + 1);
+            } else if (expr instanceof Expr.Assigment) {
+                Expr.Assigment assigment = (Expr.Assigment) expr;
+                out.writeByte(ASSIGMENT);
+                write(assigment.name);
+                write(assigment.value);
+                out.writeVarint(assigment.binding.ordinal());
+                out.writeVarint(assigment.slot + 1);
+            } else if (expr instanceof Expr.Or) {
+                Expr.Or or = (Expr.Or) expr;
+                out.writeByte(OR);
+                write(or.left);
+                write(or.operator);
+                write(or.right);
+            } else if (expr instanceof Expr.And) {
+                Expr.And and = (Expr.And) expr;
+                out.writeByte(AND);
+                write(and.left);
+                write(and.operator);
+                write(and.right);
+            } else if (expr instanceof Expr.CallExpr) {
+                Expr.CallExpr call = (Expr.CallExpr) expr;
+                out.writeByte(CALL);
+                write(call.name);
+                out.writeVarint(call.args.size());
+                for (Expr arg : call.args) write(arg);
+                write(call.closureParent);
+            } else if (expr instanceof Expr.ArrayLiteral) {
+                Expr.ArrayLiteral array = (Expr.ArrayLiteral) expr;
+                out.writeByte(ARRAY);
+                write(array.bracket);
+                out.writeVarint(array.elements.size());
+                for (Expr element : array.elements) write(element);
+            } else if (expr instanceof Expr.MapLiteral) {
+                Expr.MapLiteral map = (Expr.MapLiteral) expr;
+                out.writeByte(MAP);
+                write(map.brace);
+                out.writeVarint(map.keys.size());
+                for (int i = 0; i < map.keys.size(); i++) {
+                    write(map.keys.get(i));
+                    write(map.values.get(i));
+                }
+            } else if (expr instanceof Expr.Index) {
+                Expr.Index index = (Expr.Index) expr;
+                out.writeByte(INDEX);
+                write(index.array);
+                write(index.bracket);
+                write(index.index);
+            } else if (expr instanceof Expr.IndexAssigment) {
+                Expr.IndexAssigment assigment = (Expr.IndexAssigment) expr;
+                out.writeByte(INDEX_ASSIGMENT);
+                write(assigment.array);
+                write(assigment.bracket);
+                write(assigment.index);
+                write(assigment.value);
+            } else {
+                throw new IllegalStateException("cannot cache " + expr.getClass().getSimpleName());
+            }
+        }
+        private void write(Token token){
+            out.writeByte(token.type.ordinal());
+            out.writeVarint(token.position);
+            writeString(token.lexeme());
+            // an identifier's value is its own name
+            if (token.type != TokenType.EOF) writeValue(token.value);
+        }
+        private void writeValue(Object value){
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((Double) value);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else {
+                throw new IllegalStateException("cannot cache " + value.getClass().getSimpleName());
+            }
+        }
+        // every distinct string is written once, later uses refer back to it by index
+        private void writeString(String string){
+            Integer index = strings.get(string);
+            if (index != null) {
+                out.writeVarint(index + 1);
+                return;
+            }
+            out.writeVarint(0);
+            byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            out.writeVarint(utf8.length);
+            out.write(utf8);
+            strings.put(string, strings.size());
+        }
+    }
+
+    private static final class Reader {
+        private final Input in;
+        private final List<String> strings = new ArrayList<>();
+        // one Symbol per name, like the Scanner hands them out
+        private final Map<String, Symbol> names = new HashMap<>();
+
+        private Reader(Input in) {
+            this.in = in;
+        }
+        List<Stmt> readAll() {
+            List<Stmt> statements = new ArrayList<>();
+            for (int tag = in.readUnsignedByte(); tag != 0; tag = in.readUnsignedByte()) {
+                statements.add(readStmt(tag));
+            }
+            return statements;
+        }
+        private Stmt readStmt(int tag){
+            switch (tag) {
+                case EXPRESSION:
+                    return new Stmt.Expression(readExpr());
+                case PRINT:
+                    return new Stmt.Print(readExpr());
+                case DECL: {
+                    Stmt.Decl decl = new Stmt.Decl(readToken(), readExpr());
+                    decl.slot = in.readVarint() - 1;
+                    decl.captured = in.readBoolean();
+                    return decl;
+                }
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(readStatements());
+                    block.slotCount = in.readVarint() - 1;
+                    return block;
+                }
+                case IF:
+                    return new Stmt.IfStmt(readExpr(), readStmt(), readOptional());
+                case WHILE:
+                    return new Stmt.WhileStmt(readExpr(), readStmt());
+                case FOR: {
+                    Stmt.ForStmt forStmt = new Stmt.ForStmt(readOptional(), readExpr(), readExpr(), readStmt());
+                    forStmt.slotCount = in.readVarint() - 1;
+                    return forStmt;
+                }
+                case LOOP_CONTROL:
+                    return new Stmt.LoopControlStmt(readToken());
+                case IMPORT:
+                    return new Stmt.ImportStmt(readToken(), readString());
+                case FUNCTION: {
+                    Token name = readToken();
+                    int arity = in.readVarint();
+                    List<Token> args = new ArrayList<>(arity);
+                    for (int i = 0; i < arity; i++) args.add(readToken());
+                    Stmt.FunctionDecl function = new Stmt.FunctionDecl(name, args, readStatements());
+                    function.slot = in.readVarint() - 1;
+                    function.slotCount = in.readVarint() - 1;
+                    function.captured = in.readBoolean();
+                    function.captures = readInts();
+                    function.cellParams = readInts();
+                    return function;
+                }
+                case LAZY_FUNCTION: {
+                    Token name = readToken();
+                    int arity = in.readVarint();
+                    List<Token> args = new ArrayList<>(arity);
+                    for (int i = 0; i < arity; i++) args.add(readToken());
+                    int size = in.readVarint();
+                    List<Token> tokens = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) tokens.add(readToken());
+                    Stmt.FunctionDecl function = new Stmt.FunctionDecl(name, args, new LazyBody(tokens, readToken()));
+                    function.slot = in.readVarint() - 1;
+                    return function;
+                }
+                case RETURN: {
+                    Stmt.ReturnStmt returnStmt = new Stmt.ReturnStmt(readToken(), readExpr());
+                    returnStmt.tailCall = in.readBoolean();
+                    return returnStmt;
+                }
+                default:
+                    throw new IllegalStateException("corrupt cache, statement tag " + tag);
+            }
+        }
+        private Stmt readStmt() {
+            return readStmt(in.readUnsignedByte());
+        }
+        private Stmt readOptional() {
+            return in.readBoolean() ? readStmt() : null;
+        }
+        private int[] readInts() {
+            int[] values = new int[in.readVarint()];
+            for (int i = 0; i < values.length; i++) {
+                int value = in.readVarint();
+                values[i] = (value & 1) == 0 ? value >>> 1 : -1 - (value >>> 1);
+            }
+            return values;
+        }
+        private List<Stmt> readStatements() {
+            int size = in.readVarint();
+            List<Stmt> statements = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) statements.add(readStmt());
+            return statements;
+        }
+        private Expr readExpr() {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 0:
+                    return null;
+                case LITERAL:
+                    return new Expr.Literal(readValue());
+                case BINARY:
+                    return new Expr.Binary(readExpr(), readToken(), readExpr());
+                case UNARY:
+                    return new Expr.Unary(readToken(), readExpr());
+                case GROUPING:
+                    return new Expr.Grouping(readExpr());
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(readToken());
+                    variable.binding = BINDINGS[in.readVarint()];
+                    variable.slot = in.readVarint() - 1;
+                    return variable;
+                }
+                case ASSIGMENT: {
+                    Expr.Assigment assigment = new Expr.Assigment(readToken(), readExpr());
+                    assigment.binding = BINDINGS[in.readVarint()];
+                    assigment.slot = in.readVarint() - 1;
+                    return assigment;
+                }
+                case OR:
+                    return new Expr.Or(readExpr(), readToken(), readExpr());
+                case AND:
+                    return new Expr.And(readExpr(), readToken(), readExpr());
+                case CALL: {
+                    Expr name = readExpr();
+                    int size = in.readVarint();
+                    List<Expr> args = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) args.add(readExpr());
+                    return new Expr.CallExpr(name, args, readToken());
+                }
+                case ARRAY: {
+                    Token bracket = readToken();
+                    int size = in.readVarint();
+                    List<Expr> elements = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) elements.add(readExpr());
+                    return new Expr.ArrayLiteral(bracket, elements);
+                }
+                case MAP: {
+                    Token brace = readToken();
+                    int size = in.readVarint();
+                    List<Expr> keys = new ArrayList<>(size);
+                    List<Expr> values = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        keys.add(readExpr());
+                        values.add(readExpr());
+                    }
+                    return new Expr.MapLiteral(brace, keys, values);
+                }
+                case INDEX:
+                    return new Expr.Index(readExpr(), readToken(), readExpr());
+                case INDEX_ASSIGMENT:
+                    return new Expr.IndexAssigment(readExpr(), readToken(), readExpr(), readExpr());
+                default:
+                    throw new IllegalStateException("corrupt cache, expression tag " + tag);
+            }
+        }
+        private Token readToken() {
+            TokenType type = TOKEN_TYPES[in.readUnsignedByte()];
+            int position = in.readVarint();
+            String lexeme = readString();
+            if (type == TokenType.EOF) return new Token(type, position, names.computeIfAbsent(lexeme, Symbol::of));
+            return new Token(type, position, lexeme, readValue());
+        }
+        private Object readValue() {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case NUMBER:
+                    return in.readDouble();
+                case STRING:
+                    return readString();
+                case TRUE:
+                    return true;
+                case FALSE:
+                    return false;
+                default:
+                    throw new IllegalStateException("corrupt cache, value tag " + tag);
+            }
+        }
+        private String readString() {
+            int index = in.readVarint();
+            if (index > 0) return strings.get(index - 1);
+            String string = new String(in.read(in.readVarint()), StandardCharsets.UTF_8);
+            strings.add(string);
+            return string;
+        }
+    }
+
+    // growable byte buffer, counts and slots are unsigned varints
+    private static final class Output {
+        byte[] bytes = new byte[4096];
+        int size = 0;
+
+        void writeByte(int value) {
+            if (size == bytes.length) bytes = Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte) value;
+        }
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+        void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+        void writeInt(int value) {
+            for (int shift = 24; shift >= 0; shift -= 8) writeByte(value >>> shift);
+        }
+        void writeDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            writeInt((int) (bits >>> 32));
+            writeInt((int) bits);
+        }
+        void write(byte[] value) {
+            if (size + value.length > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(size * 2, size + value.length));
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+    }
+    private static final class Input {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+        int readUnsignedByte() {
+            return bytes[position++] & 0xff;
+        }
+        boolean readBoolean() {
+            return bytes[position++] != 0;
+        }
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = bytes[position++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+        int readInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) value = (value << 8) | readUnsignedByte();
+            return value;
+        }
+        double readDouble() {
+            long high = readInt() & 0xffffffffL;
+            return Double.longBitsToDouble((high << 32) | (readInt() & 0xffffffffL));
+        }
+        byte[] read(int length) {
+            if (length > bytes.length - position) throw new IllegalStateException("corrupt cache, truncated");
+            byte[] value = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return value;
+        }
+    }
+}
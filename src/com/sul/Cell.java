@@ -0,0 +1,10 @@
+package com.sul;
+
+// box for a local that a closure captured, the frame slot and every closure share it
+public final class Cell {
+    public Object value;
+
+    public Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -1,59 +1,65 @@
 package com.sul;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 public class Env {
-    private Env previous;
-    private final HashMap<String,Object> env;
+    private static final Object[] NO_SLOTS = new Object[0];
+    private static final Cell[] NO_UPVALUES = new Cell[0];
+    // locals live in slots assigned by the Resolver, globals in the slot their name has in this Env's table
+    Object[] slots;
+    // cells the running closure captured from enclosing frames
+    final Cell[] upvalues;
+    // null for call frames, only the globals Env numbers names
+    private final Globals names;
     public void put(Token name, Object value) {
-        if(env.containsKey(name.lexeme))
-            Sul.error(name.position,"variable: " + name.lexeme + " already exists");
-        env.put(name.lexeme, value);
+        int slot = names.find(name.symbol());
+        if (slot < 0) {
+            slot = names.slot(name.symbol());
+            if (slot >= slots.length) slots = Arrays.copyOf(slots, Math.max(64, slots.length * 2));
+        } else if (!NativeRegistry.isNative(slots[slot])) {
+            throw new RuntimeError(name, "variable: " + name.lexeme() + " already exists");
+        }
+        slots[slot] = value;
     }
     public Object get(Token name) {
-        if(env.containsKey(name.lexeme)) {
-            return env.get(name.lexeme);
-        }
-        if(previous!=null){
-            return previous.get(name);
-
+        int slot = indexOf(name);
+        if(slot >= 0) {
+            return slots[slot];
         }
-        Sul.RuntimeError(new RuntimeError(name, "cannot use not declared variable"));
-        System.exit(1);
-        return null;
+        throw new RuntimeError(name, "cannot use not declared variable");
     }
     public void assign(Token name, Object value) {
-        if(env.containsKey(name.lexeme)) {
-            env.put(name.lexeme, value);
-            return;
-        }
-        if(previous != null) {
-            previous.assign(name, value);
+        int slot = indexOf(name);
+        if(slot >= 0) {
+            slots[slot] = value;
             return;
         }
-        Sul.error(name.position, "Failed to assign variable, it doesn't exist: " + name.lexeme);
-
+        throw new RuntimeError(name, "Failed to assign variable, it doesn't exist: " + name.lexeme());
+    }
+    // only declared names get a slot, and it never moves, so callers may cache the index
+    int indexOf(Token name) {
+        return names.find(name.symbol());
     }
     Env() {
-        env = new HashMap<>();
-        previous = null;
+        this(null);
     }
-    Env(Env previous) {
-        this.previous = previous;
-        env = new HashMap<>();
+    private Env(Globals names) {
+        slots = NO_SLOTS;
+        upvalues = NO_UPVALUES;
+        this.names = names;
     }
-    Object getAt(int distance, String name) {
-        return ancestor(distance).env.get(name);
+    // the one Env of an interpreter that holds globals by name
+    static Env globals() {
+        return new Env(new Globals());
     }
-    Env ancestor(int distance) {
-        Env environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.previous;
-        }
-
-        return environment;
+    // top-level code has no call to hold its locals, so its blocks and loops share one frame that grows to fit
+    void reserve(int size) {
+        if (slots.length < size) slots = Arrays.copyOf(slots, size);
     }
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).env.put(name.lexeme, value);
+    // one flat frame per call, blocks inside the function do not get one of their own
+    Env(Cell[] upvalues, int size) {
+        this.upvalues = upvalues;
+        slots = size == 0 ? NO_SLOTS : new Object[size];
+        names = null;
     }
 }
@@ -0,0 +1,21 @@
+package com.sul;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// keeps errors instead of printing them, for code that runs away from the command line
+final class ErrorList implements ErrorReporter {
+    final List<SulError> errors = new ArrayList<>();
+
+    @Override
+    public void error(int line, String message) {
+        errors.add(new SulError(SulError.Kind.SYNTAX, line, message));
+    }
+    @Override
+    public void runtimeError(RuntimeError error) {
+        errors.add(new SulError(SulError.Kind.RUNTIME, error.token.position, error.getMessage()));
+    }
+    boolean isEmpty() {
+        return errors.isEmpty();
+    }
+}
@@ -0,0 +1,9 @@
+package com.sul;
+
+// where scanning, parsing, resolving and running report problems, so nothing below the command line prints or exits
+public interface ErrorReporter {
+    // syntax and resolution errors, the statement they occur in is not run
+    void error(int line, String message);
+    // stops the statement being run
+    void runtimeError(RuntimeError error);
+}
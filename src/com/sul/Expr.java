@@ -3,8 +3,8 @@ package com.sul;
 import java.util.List;
 
 public abstract class Expr {
-	abstract <R> R accept(Visitor<R> v);
-	interface Visitor<R> {
+	public abstract <R> R accept(Visitor<R> v);
+	public interface Visitor<R> {
 		R visitLiteral (Literal literal);
 		R visitBinary (Binary binary);
 		R visitUnary (Unary unary);
@@ -14,108 +14,199 @@ public abstract class Expr {
 		R visitOr(Or or);
 		R visitAnd(And and);
 		R visitCallExpr(CallExpr callExpr);
+		R visitArrayLiteral(ArrayLiteral arrayLiteral);
+		R visitIndex(Index index);
+		R visitIndexAssigment(IndexAssigment indexAssigment);
+		R visitMapLiteral(MapLiteral mapLiteral);
+	}
+	// runtime type feedback, nodes start uninitialized and settle on a variant or fall back to generic
+	public enum Specialization {
+		UNINITIALIZED, NUMBER, STRING, MONOMORPHIC, GENERIC
+	}
+	// where the Resolver found a variable: a plain frame slot, a frame slot holding a Cell because a closure
+	// captured it, a Cell the running closure captured from an enclosing frame, or a global looked up by name
+	public enum Binding {
+		GLOBAL, LOCAL, CELL, UPVALUE
+	}
+	// true when the expression either evaluates to a number or fails
+	public static boolean producesNumber(Expr expr) {
+		if (expr instanceof Literal) return ((Literal) expr).value instanceof Double;
+		if (expr instanceof Binary) return ((Binary) expr).numeric;
+		if (expr instanceof Unary) return ((Unary) expr).operator.type == TokenType.MINUS;
+		if (expr instanceof Grouping) return producesNumber(((Grouping) expr).expr);
+		return false;
 	}
 	public static class Literal extends Expr {
-		Object value;
-		Literal(Object value) {
+		public Object value;
+		public Literal(Object value) {
             this.value = value;
 		}
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitLiteral(this);
 		}
 	}
 	public static class Binary extends Expr {
-		Expr left;
-		Token operator;
-		Expr right;
+		public Expr left;
+		public Token operator;
+		public Expr right;
+		// operands of - * / must be numbers, so the result is always a number
+		public final boolean numeric;
+		public Specialization specialization = Specialization.UNINITIALIZED;
 		Binary(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
             this.right = right;
+			this.numeric = switch (operator.type) {
+				case MINUS, STAR, SLASH -> true;
+				case PLUS -> producesNumber(left) && producesNumber(right);
+				default -> false;
+			};
 		}
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitBinary(this);
 		}
 	}
 	public static class Unary extends Expr {
-		Token operator;
-		Expr expression;
+		public Token operator;
+		public Expr expression;
 		Unary(Token operator, Expr expression) {
             this.operator = operator;
             this.expression = expression;
 		}
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitUnary(this);
 		}
 	}
 	public static class Grouping extends Expr {
-		Expr expr;
+		public Expr expr;
 		Grouping(Expr expr) {
             this.expr = expr;
 		}
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitGrouping(this);
 		}
 	}
 	public static class Variable extends Expr {
-		Token name;
+		public Token name;
+		// filled in by the Resolver, slot is the frame slot or for UPVALUE the index into the closure's cells
+		public Binding binding = Binding.GLOBAL;
+		public int slot;
+		// a global's slot in the globals it was last read from, the tree-walker checks the owner before using it
+		Env cachedGlobals;
+		int cachedSlot;
 		Variable(Token name) {
 			this.name = name;
 		}
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitVariable(this);
 		}
 	}
 	public static class Assigment extends Expr {
-		Token name;
-		Expr value;
+		public Token name;
+		public Expr value;
+		public Binding binding = Binding.GLOBAL;
+		public int slot;
+		// like Variable's, for the global this assigns
+		Env cachedGlobals;
+		int cachedSlot;
 		Assigment(Token name, Expr value) {
 			this.name = name;
 			this.value = value;
 		}
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitAssigment(this);
 		}
 	}
 	public static class Or extends Expr {
-		Expr left;
-		Token operator;
-		Expr right;
+		public Expr left;
+		public Token operator;
+		public Expr right;
 		Or(Expr left, Token operator, Expr right) {
 			this.left = left;
 			this.operator = operator;
 			this.right = right;
 		}
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitOr(this);
 		}
 	}
 	public static class And extends Expr {
-		Expr left;
-		Token operator;
-		Expr right;
+		public Expr left;
+		public Token operator;
+		public Expr right;
 		And(Expr left, Token operator, Expr right) {
 			this.left = left;
 			this.operator = operator;
 			this.right = right;
 		}
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitAnd(this);
 		}
 	}
 	public static class CallExpr extends Expr {
-		Expr name;
-		List<Expr> args;
-		Token closureParent;
+		public Expr name;
+		public List<Expr> args;
+		public Token closureParent;
+		public Specialization specialization = Specialization.UNINITIALIZED;
+		// the only callee seen while MONOMORPHIC
+		public Object cachedCallee;
 		CallExpr(Expr name, List<Expr> args, Token closureParent) {
 			this.name = name;
 			this.args = args;
 			this.closureParent = closureParent;
 		}
-		<R> R accept(Visitor<R> visitor) { return visitor.visitCallExpr(this); }
+		public <R> R accept(Visitor<R> visitor) { return visitor.visitCallExpr(this); }
+	}
+	public static class ArrayLiteral extends Expr {
+		public Token bracket;
+		public List<Expr> elements;
+		ArrayLiteral(Token bracket, List<Expr> elements) {
+			this.bracket = bracket;
+			this.elements = elements;
+		}
+		public <R> R accept(Visitor<R> visitor) { return visitor.visitArrayLiteral(this); }
+	}
+	// keys and values are evaluated in source order, key before its value
+	public static class MapLiteral extends Expr {
+		public Token brace;
+		public List<Expr> keys;
+		public List<Expr> values;
+		MapLiteral(Token brace, List<Expr> keys, List<Expr> values) {
+			this.brace = brace;
+			this.keys = keys;
+			this.values = values;
+		}
+		public <R> R accept(Visitor<R> visitor) { return visitor.visitMapLiteral(this); }
+	}
+	// array is an array or a map
+	public static class Index extends Expr {
+		public Expr array;
+		// the opening [, errors about the index point at it
+		public Token bracket;
+		public Expr index;
+		Index(Expr array, Token bracket, Expr index) {
+			this.array = array;
+			this.bracket = bracket;
+			this.index = index;
+		}
+		public <R> R accept(Visitor<R> visitor) { return visitor.visitIndex(this); }
+	}
+	// array, index and value are evaluated in that order, the bounds are checked last
+	public static class IndexAssigment extends Expr {
+		public Expr array;
+		public Token bracket;
+		public Expr index;
+		public Expr value;
+		IndexAssigment(Expr array, Token bracket, Expr index, Expr value) {
+			this.array = array;
+			this.bracket = bracket;
+			this.index = index;
+			this.value = value;
+		}
+		public <R> R accept(Visitor<R> visitor) { return visitor.visitIndexAssigment(this); }
 	}
-}
+}
\ No newline at end of file
@@ -12,12 +12,12 @@ public class ExprPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitBinary(Expr.Binary binary) {
-        return parenthesize(binary.operator.lexeme, binary.left, binary.right);
+        return parenthesize(binary.operator.lexeme(), binary.left, binary.right);
     }
 
     @Override
     public String visitUnary(Expr.Unary unary) {
-        return parenthesize(unary.operator.lexeme, unary.expression);
+        return parenthesize(unary.operator.lexeme(), unary.expression);
     }
 
     @Override
@@ -27,7 +27,7 @@ public class ExprPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitVariable(Expr.Variable variable) {
-        return variable.name.lexeme;
+        return variable.name.lexeme();
     }
 
     @Override
@@ -50,6 +50,31 @@ public class ExprPrinter implements Expr.Visitor<String> {
         return "";
     }
 
+    @Override
+    public String visitArrayLiteral(Expr.ArrayLiteral arrayLiteral) {
+        return parenthesize("array", arrayLiteral.elements.toArray(new Expr[0]));
+    }
+
+    @Override
+    public String visitMapLiteral(Expr.MapLiteral mapLiteral) {
+        Expr[] entries = new Expr[mapLiteral.keys.size() * 2];
+        for (int i = 0; i < mapLiteral.keys.size(); i++) {
+            entries[2 * i] = mapLiteral.keys.get(i);
+            entries[2 * i + 1] = mapLiteral.values.get(i);
+        }
+        return parenthesize("map", entries);
+    }
+
+    @Override
+    public String visitIndex(Expr.Index index) {
+        return parenthesize("index", index.array, index.index);
+    }
+
+    @Override
+    public String visitIndexAssigment(Expr.IndexAssigment indexAssigment) {
+        return "";
+    }
+
     private String parenthesize(String operator, Expr ...exprs) {
         StringBuilder msg = new StringBuilder();
         msg.append("(");
@@ -0,0 +1,33 @@
+package com.sul;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// the global names of one interpreter or VM, numbered densely in the order they first show up;
+// a slot is never taken back, so callers may keep it
+public final class Globals {
+    private final Map<Symbol, Integer> slots = new HashMap<>();
+    private Symbol[] names = new Symbol[64];
+
+    // -1 when name has no slot yet
+    public int find(Symbol name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+    public int slot(Symbol name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+        int next = slots.size();
+        if (next == names.length) names = Arrays.copyOf(names, next * 2);
+        names[next] = name;
+        slots.put(name, next);
+        return next;
+    }
+    public Symbol name(int slot) {
+        return names[slot];
+    }
+    public int size() {
+        return slots.size();
+    }
+}
@@ -0,0 +1,55 @@
+package com.sul;
+
+import com.sul.opt.PassManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+// the modules one engine has imported, each runs the first time one of its names is looked up
+public final class Imports {
+    // executed import statements whose module has not been waited for yet
+    private final List<Stmt.ImportStmt> pending = new ArrayList<>();
+    private final Map<Symbol, ModuleLoader.Module> owners = new HashMap<>();
+    private final Set<ModuleLoader.Module> started = new HashSet<>();
+    private final PassManager optimizer;
+
+    public Imports(PassManager optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    public void add(Stmt.ImportStmt stmt) {
+        pending.add(stmt);
+    }
+    // runs the module declaring name, false when no imported module declares it or it already ran
+    public boolean resolve(Symbol name, Consumer<List<Stmt>> runner) {
+        for (Stmt.ImportStmt stmt : pending) {
+            ModuleLoader.Module module = join(stmt);
+            for (Symbol export : module.exports) {
+                owners.putIfAbsent(export, module);
+            }
+        }
+        pending.clear();
+        ModuleLoader.Module module = owners.get(name);
+        if (module == null || !started.add(module)) return false;
+        // every engine gets a tree of its own, running it specializes nodes in place
+        runner.accept(optimizer.run(module.statements()));
+        return true;
+    }
+    private static ModuleLoader.Module join(Stmt.ImportStmt stmt) {
+        ForkJoinTask<ModuleLoader.Module> module = stmt.module;
+        try {
+            return module.join();
+        } catch (RuntimeException e) {
+            // join rethrows a copy that wraps what load threw
+            Throwable cause = e;
+            while (cause.getCause() != null) cause = cause.getCause();
+            throw new RuntimeError(stmt.keyWord, "cannot import " + stmt.file + ": " + cause.getMessage());
+        }
+    }
+}
@@ -1,33 +1,39 @@
 package com.sul;
 
+import com.sul.opt.PassManager;
+
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private boolean breakState=false;
-    final Env globals = new Env();
-    private Env env = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-    Interpreter() {
-        Token clock = new Token(TokenType.EOF, 0,"clock", "clock");
-        globals.put(clock, new SulCallable() {
-            @Override
-            public int arity() { return 0; }
-
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
-
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    private static final long STACK_SEGMENT_SIZE = Long.getLong("sul.stack.size", 64L << 20);
+    // the thread running the script may have a small stack, so it only holds this many calls
+    private static final int FIRST_SEGMENT = 256;
+    // calls per Java stack segment when running with --deep, 0 keeps everything on the caller's stack
+    int stackSegment = 0;
+    private int callDepth = 0;
+    private int segmentEnd = FIRST_SEGMENT;
+    // set by --profile, SulFunction keeps its shadow stack
+    Profiler profiler = null;
+    final Env globals = Env.globals();
+    private final Imports imports;
+    private final ErrorReporter reporter;
+    private final OutputSink out;
+    // the frame of the code running now, the script's own frame outside any function
+    private Env env = new Env();
+    // modules are optimized with the same passes as the code importing them
+    Interpreter(ErrorReporter reporter, PassManager optimizer, OutputSink out) {
+        this(reporter, optimizer, out, NativeRegistry.builtinNatives());
     }
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    Interpreter(ErrorReporter reporter, PassManager optimizer, OutputSink out, Map<String, SulCallable> natives) {
+        this.reporter = reporter;
+        this.imports = new Imports(optimizer);
+        this.out = out;
+        for (Map.Entry<String, SulCallable> entry : natives.entrySet()) {
+            Token name = new Token(TokenType.EOF, 0, entry.getKey(), entry.getKey());
+            globals.put(name, entry.getValue());
+        }
     }
     public void interpret(List<Stmt> stmtList) {
         try {
@@ -35,15 +41,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 executeStmt(stmt);
             }
         } catch (RuntimeError error) {
-            Sul.RuntimeError(error);
+            reporter.runtimeError(error);
         }
     }
     private void executeStmt(Stmt stmt) {
         stmt.accept(this);
     }
-    private String makeValidString(Object value) {
+    public static String makeValidString(Object value) {
         if(value == null) return "nihil";
         if(value instanceof Double) {
+            double number = (Double) value;
+            // integral numbers skip Double.toString and cutting off its ".0"
+            if (OutputSink.isPlain(number)) return Long.toString((long) number);
             String text = ((Double)value).toString();
             if (text.endsWith(".0")) {
                 text = text.substring(0, text.length() - 2);
@@ -59,79 +68,192 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinary(Expr.Binary binary) {
-        Object right = evaluate(binary.right);
-        Object left = evaluate(binary.left);
+        if (binary.numeric) return evaluateDouble(binary);
         Token operator = binary.operator;
         switch (operator.type) {
             case PLUS:
-                if(right instanceof String && left instanceof String) {
-                    return (String)left + (String)right;
-                }
-                if(left instanceof Double && right instanceof Double) {
-                    return (Double)left + (Double)right;
-                }
-                if(left instanceof Double && right instanceof String) {
-                    return makeValidString(left) + right;
-                }
-                if(right instanceof Double && left instanceof String) {
-                    return left + makeValidString(right);
-                }
-                throw new RuntimeError(operator, "cannot add two values");
-            case MINUS:
-                checkBinaryType(left, right, operator);
-                return (Double)left - (Double)right;
-
-            case STAR:
-                checkBinaryType(left, right, operator);
-                return (Double)left * (Double)right;
-
-            case SLASH:
-                checkBinaryType(left, right, operator);
-                return (Double)left / (Double)right;
-            case EQUAL_EQUAL:
-                return isEqual(left,right);
-            case BANG_EQUAL:
-                return !isEqual(left,right);
+                return add(binary);
+            case EQUAL_EQUAL: {
+                Object right = evaluate(binary.right);
+                return isEqual(evaluate(binary.left), right);
+            }
+            case BANG_EQUAL: {
+                Object right = evaluate(binary.right);
+                return !isEqual(evaluate(binary.left), right);
+            }
+        }
+        double right = rightOperand(binary);
+        double left = evaluateDouble(binary.left, operator);
+        switch (operator.type) {
             case GREATER_EQUAL:
-                checkBinaryType(left, right, operator);
-                    return (Double)left >= (Double)right;
+                return left >= right;
             case LESS_EQUAL:
-                checkBinaryType(left, right, operator);
-                return (Double)left <= (Double)right;
+                return left <= right;
             case GREATER:
-                checkBinaryType(left, right, operator);
-                return (Double)left > (Double)right;
+                return left > right;
             case LESS:
-                checkBinaryType(left, right, operator);
-                return (Double)left < (Double)right;
+                return left < right;
         }
         return null;
     }
+    private Object add(Expr.Binary binary) {
+        Token operator = binary.operator;
+        if (Expr.producesNumber(binary.right)) {
+            double right = rightOperand(binary);
+            Object left = evaluate(binary.left);
+            if (left instanceof Double) return (Double)left + right;
+            if (left instanceof CharSequence) return Rope.concat((CharSequence) left, makeValidString(right));
+            throw new RuntimeError(operator, "cannot add two values");
+        }
+        Object right = evaluate(binary.right);
+        Object left = evaluate(binary.left);
+        switch (binary.specialization) {
+            case NUMBER:
+                if (left instanceof Double && right instanceof Double) return (Double)left + (Double)right;
+                break;
+            case STRING:
+                if (left instanceof CharSequence && right instanceof CharSequence) {
+                    return Rope.concat((CharSequence) left, (CharSequence) right);
+                }
+                break;
+            case UNINITIALIZED:
+                if (left instanceof Double && right instanceof Double) {
+                    binary.specialization = Expr.Specialization.NUMBER;
+                } else if (left instanceof CharSequence && right instanceof CharSequence) {
+                    binary.specialization = Expr.Specialization.STRING;
+                } else {
+                    binary.specialization = Expr.Specialization.GENERIC;
+                }
+                return addGeneric(left, right, operator);
+            default:
+                return addGeneric(left, right, operator);
+        }
+        // the operand types changed, do not try to specialize this node again
+        binary.specialization = Expr.Specialization.GENERIC;
+        return addGeneric(left, right, operator);
+    }
+    private Object addGeneric(Object left, Object right, Token operator) {
+        if(right instanceof CharSequence && left instanceof CharSequence) {
+            return Rope.concat((CharSequence) left, (CharSequence) right);
+        }
+        if(left instanceof Double && right instanceof Double) {
+            return (Double)left + (Double)right;
+        }
+        if(left instanceof Double && right instanceof CharSequence) {
+            return Rope.concat(makeValidString(left), (CharSequence) right);
+        }
+        if(right instanceof Double && left instanceof CharSequence) {
+            return Rope.concat((CharSequence) left, makeValidString(right));
+        }
+        throw new RuntimeError(operator, "cannot add two values");
+    }
+    // arithmetic stays on primitive doubles until the outermost numeric node boxes the result
+    private double evaluateDouble(Expr.Binary binary) {
+        Token operator = binary.operator;
+        double right = rightOperand(binary);
+        double left = evaluateDouble(binary.left, operator);
+        switch (operator.type) {
+            case PLUS:
+                return left + right;
+            case MINUS:
+                return left - right;
+            case STAR:
+                return left * right;
+            case SLASH:
+                if (right == 0) throw new RuntimeError(operator, "cannot divide by 0");
+                return left / right;
+        }
+        throw new RuntimeError(operator, "operator must be a number");
+    }
+    private double evaluateDouble(Expr expr, Token operator) {
+        try {
+            return operand(expr);
+        } catch (NotANumber e) {
+            throw new RuntimeError(operator, "operator must be a number");
+        }
+    }
+    // the right operand is checked only after the left one ran, so a script sees the side effects
+    // of both operands before the error, the order boxed evaluation has
+    private double rightOperand(Expr.Binary binary) {
+        try {
+            return operand(binary.right);
+        } catch (NotANumber e) {
+            evaluate(binary.left);
+            throw new RuntimeError(binary.operator, "operator must be a number");
+        }
+    }
+    // throws NotANumber when expr evaluates to something else, errors inside expr are thrown as they are
+    private double operand(Expr expr) {
+        if (expr instanceof Expr.Binary && ((Expr.Binary) expr).numeric) {
+            return evaluateDouble((Expr.Binary) expr);
+        }
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (value instanceof Double) return (Double) value;
+            throw NotANumber.INSTANCE;
+        }
+        if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return -evaluateDouble(unary.expression, unary.operator);
+        }
+        if (expr instanceof Expr.Grouping) {
+            return operand(((Expr.Grouping) expr).expr);
+        }
+        if (expr instanceof Expr.Index) {
+            return operand((Expr.Index) expr);
+        }
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (Double) value;
+        throw NotANumber.INSTANCE;
+    }
+    // numeric arrays hand out their elements without boxing them
+    private double operand(Expr.Index index) {
+        Object array = evaluate(index.array);
+        if (array instanceof SulMap) {
+            Object value = lookup((SulMap) array, index.index, index.bracket);
+            if (value instanceof Double) return (Double) value;
+            throw NotANumber.INSTANCE;
+        }
+        double position = evaluateIndex(index.index, index.bracket);
+        SulArray elements = array(array, index.bracket);
+        int slot = slot(elements, position, index.bracket);
+        if (elements.holdsNumbers()) return elements.number(slot);
+        Object value = elements.get(slot);
+        if (value instanceof Double) return (Double) value;
+        throw NotANumber.INSTANCE;
+    }
+    // an operand that is not a number, carries nothing so one instance does
+    private static final class NotANumber extends RuntimeException {
+        static final NotANumber INSTANCE = new NotANumber();
 
-    private boolean isEqual(Object left, Object right) {
+        private NotANumber() {
+            super(null, null, false, false);
+        }
+    }
+    public static boolean isEqual(Object left, Object right) {
         if(left == null && right == null) {
             return true;
         }
         if(left == null || right == null) {
             return false;
         }
+        // a String and a Rope with the same characters are the same Sul string
+        if (left instanceof CharSequence && right instanceof CharSequence) {
+            return left.toString().equals(right.toString());
+        }
         return left.equals(right);
     }
     @Override
     public Object visitUnary(Expr.Unary unary) {
-        Object expr = evaluate(unary.expression);
         Token operator = unary.operator;
-        switch (operator.type) {
-            case MINUS:
-                checkUnaryType(expr, operator);
-                return  -(double)expr;
-            case BANG:
-                checkUnaryType(expr, operator);
-                return !isTruthy(expr);
+        if (operator.type == TokenType.MINUS) {
+            return -evaluateDouble(unary.expression, operator);
         }
-        return null;
+        Object expr = evaluate(unary.expression);
+        checkUnaryType(expr, operator);
+        return !isTruthy(expr);
     }
-    private boolean isTruthy(Object expr) {
+    public static boolean isTruthy(Object expr) {
         if(expr instanceof Boolean) {
             return (Boolean)expr;
         }
@@ -146,28 +268,46 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariable(Expr.Variable variable) {
-        return lookUpVariable(variable.name, variable);
-    }
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return env.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+        switch (variable.binding) {
+            case LOCAL: return env.slots[variable.slot];
+            case CELL: return ((Cell) env.slots[variable.slot]).value;
+            case UPVALUE: return env.upvalues[variable.slot].value;
         }
+        if (variable.cachedGlobals == globals) return globals.slots[variable.cachedSlot];
+        int slot = globals.indexOf(variable.name);
+        if (slot < 0 && imports.resolve(variable.name.symbol(), this::runModule)) {
+            slot = globals.indexOf(variable.name);
+        }
+        if (slot < 0) return globals.get(variable.name);
+        // a declared global keeps its slot, later reads through this node skip the name lookup
+        variable.cachedGlobals = globals;
+        variable.cachedSlot = slot;
+        return globals.slots[slot];
     }
 
     @Override
     public Object visitAssigment(Expr.Assigment assigment) {
-        Token name = assigment.name;
         Object value = evaluate(assigment.value);
-        Integer distance = locals.get(assigment);
-        if (distance != null) {
-            env.assignAt(distance, assigment.name, value);
-        } else {
+        switch (assigment.binding) {
+            case LOCAL: env.slots[assigment.slot] = value; return null;
+            case CELL: ((Cell) env.slots[assigment.slot]).value = value; return null;
+            case UPVALUE: env.upvalues[assigment.slot].value = value; return null;
+        }
+        if (assigment.cachedGlobals == globals) {
+            globals.slots[assigment.cachedSlot] = value;
+            return null;
+        }
+        int slot = globals.indexOf(assigment.name);
+        if (slot < 0 && imports.resolve(assigment.name.symbol(), this::runModule)) {
+            slot = globals.indexOf(assigment.name);
+        }
+        if (slot < 0) {
             globals.assign(assigment.name, value);
+            return null;
         }
-        env.assign(name, value);
+        assigment.cachedGlobals = globals;
+        assigment.cachedSlot = slot;
+        globals.slots[slot] = value;
         return null;
     }
 
@@ -194,21 +334,184 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitCallExpr(Expr.CallExpr callExpr) {
         Object name = evaluate(callExpr.name);
-        List<Object> arguments = new ArrayList<>();
+        List<Expr> args = callExpr.args;
+        int count = args.size();
+        // the arguments run before the callee is checked, like in the vm; up to four of them need no list
+        List<Object> arguments = null;
+        Object a = null, b = null, c = null, d = null;
+        if (stackSegment != 0 || count > 4) {
+            arguments = evaluateArguments(callExpr);
+        } else {
+            if (count > 0) a = evaluate(args.get(0));
+            if (count > 1) b = evaluate(args.get(1));
+            if (count > 2) c = evaluate(args.get(2));
+            if (count > 3) d = evaluate(args.get(3));
+        }
+        // a monomorphic site already checked this callee
+        if (name != callExpr.cachedCallee) checkCallee(callExpr, name, count);
+        SulCallable function = (SulCallable)name;
+        try {
+            if (arguments != null) return invoke(function, arguments);
+            switch (count) {
+                case 0: return function.call0(this);
+                case 1: return function.call1(this, a);
+                case 2: return function.call2(this, a, b);
+                case 3: return function.call3(this, a, b, c);
+                default: return function.call4(this, a, b, c, d);
+            }
+        } catch (RuntimeError error) {
+            throw atCall(error, callExpr);
+        }
+    }
+    // a native's error gets the line of the call that reached it
+    private static RuntimeError atCall(RuntimeError error, Expr.CallExpr callExpr) {
+        return error.token != null ? error : new RuntimeError(callExpr.closureParent, error.getMessage());
+    }
+    private List<Object> evaluateArguments(Expr.CallExpr callExpr) {
+        List<Object> arguments = new ArrayList<>(callExpr.args.size());
         for (Expr argument : callExpr.args) {
             arguments.add(evaluate(argument));
         }
+        return arguments;
+    }
+    private Object invoke(SulCallable function, List<Object> arguments) {
+        if (stackSegment == 0) return function.call(this, arguments);
+        if (callDepth == segmentEnd) return callOnNewSegment(function, arguments);
+        callDepth++;
+        try {
+            return function.call(this, arguments);
+        } finally {
+            callDepth--;
+        }
+    }
+    // continues the call on a fresh thread stack while this thread waits, so recursion depth is bound by the heap
+    private Object callOnNewSegment(SulCallable function, List<Object> arguments) {
+        int end = segmentEnd;
+        segmentEnd += stackSegment;
+        Object[] result = new Object[1];
+        Throwable[] failure = new Throwable[1];
+        Thread segment = new Thread(null, () -> {
+            try {
+                result[0] = invoke(function, arguments);
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "sul-stack-segment", STACK_SEGMENT_SIZE);
+        segment.start();
+        boolean interrupted = false;
+        while (segment.isAlive()) {
+            try {
+                segment.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        segmentEnd = end;
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error) throw (Error) failure[0];
+        return result[0];
+    }
+    private void checkCallee(Expr.CallExpr callExpr, Object name, int argumentCount) {
         if (!(name instanceof SulCallable)) {
             throw new RuntimeError(callExpr.closureParent,
                     "Can only call functions and classes.");
         }
         SulCallable function = (SulCallable)name;
-        if (arguments.size() != function.arity()) {
+        if (argumentCount != function.arity()) {
             throw new RuntimeError(callExpr.closureParent, "Expected " +
                     function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+                    argumentCount + ".");
+        }
+        if (callExpr.specialization == Expr.Specialization.UNINITIALIZED) {
+            callExpr.specialization = Expr.Specialization.MONOMORPHIC;
+            callExpr.cachedCallee = function;
+        } else if (callExpr.specialization == Expr.Specialization.MONOMORPHIC) {
+            callExpr.specialization = Expr.Specialization.GENERIC;
+            callExpr.cachedCallee = null;
+        }
+    }
+
+    @Override
+    public Object visitArrayLiteral(Expr.ArrayLiteral arrayLiteral) {
+        List<Expr> elements = arrayLiteral.elements;
+        Object[] values = new Object[elements.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(elements.get(i));
+        }
+        return SulArray.of(values, 0, values.length);
+    }
+
+    @Override
+    public Object visitMapLiteral(Expr.MapLiteral mapLiteral) {
+        SulMap map = new SulMap();
+        for (int i = 0; i < mapLiteral.keys.size(); i++) {
+            Object key = key(evaluate(mapLiteral.keys.get(i)), mapLiteral.brace);
+            map.put(key, evaluate(mapLiteral.values.get(i)));
+        }
+        return map;
+    }
+
+    @Override
+    public Object visitIndex(Expr.Index index) {
+        Object array = evaluate(index.array);
+        if (array instanceof SulMap) return lookup((SulMap) array, index.index, index.bracket);
+        double position = evaluateIndex(index.index, index.bracket);
+        SulArray elements = array(array, index.bracket);
+        return elements.get(slot(elements, position, index.bracket));
+    }
+
+    @Override
+    public Object visitIndexAssigment(Expr.IndexAssigment assigment) {
+        Object array = evaluate(assigment.array);
+        if (array instanceof SulMap) {
+            SulMap map = (SulMap) array;
+            if (assigment.index instanceof Expr.Binary && ((Expr.Binary) assigment.index).numeric) {
+                double key = evaluateDouble((Expr.Binary) assigment.index);
+                map.put(key, evaluate(assigment.value));
+            } else {
+                Object key = key(evaluate(assigment.index), assigment.bracket);
+                map.put(key, evaluate(assigment.value));
+            }
+            return null;
+        }
+        double position = evaluateIndex(assigment.index, assigment.bracket);
+        if (Expr.producesNumber(assigment.value)) {
+            double value = evaluateDouble(assigment.value, assigment.bracket);
+            SulArray elements = array(array, assigment.bracket);
+            elements.setNumber(slot(elements, position, assigment.bracket), value);
+        } else {
+            Object value = evaluate(assigment.value);
+            SulArray elements = array(array, assigment.bracket);
+            elements.set(slot(elements, position, assigment.bracket), value);
         }
-        return function.call(this, arguments);
+        return null;
+    }
+    private double evaluateIndex(Expr index, Token bracket) {
+        if (index instanceof Expr.Binary && ((Expr.Binary) index).numeric) return evaluateDouble((Expr.Binary) index);
+        Object value = evaluate(index);
+        if (value instanceof Double) return (Double) value;
+        throw new RuntimeError(bracket, "index must be a number");
+    }
+    // a key computed by numeric arithmetic is looked up without boxing it
+    private Object lookup(SulMap map, Expr index, Token bracket) {
+        if (index instanceof Expr.Binary && ((Expr.Binary) index).numeric) return map.get(evaluateDouble((Expr.Binary) index));
+        return map.get(key(evaluate(index), bracket));
+    }
+    private static Object key(Object key, Token bracket) {
+        if (SulMap.isKey(key)) return key;
+        throw new RuntimeError(bracket, "map keys must be numbers, strings, booleans or nihil");
+    }
+    private static SulArray array(Object value, Token bracket) {
+        if (value instanceof SulArray) return (SulArray) value;
+        throw new RuntimeError(bracket, "can only index arrays and maps");
+    }
+    private static int slot(SulArray array, double position, Token bracket) {
+        int slot = array.slot(position);
+        if (slot < 0) {
+            throw new RuntimeError(bracket, "index " + makeValidString(position) + " out of bounds for length " + array.size());
+        }
+        return slot;
     }
 
     @Override
@@ -219,23 +522,26 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitPrint(Stmt.Print printStmt) {
-        Object value = evaluate(printStmt.expr);
-        String valueString = makeValidString(value);
-        System.out.println(valueString);
+        out.println(evaluate(printStmt.expr));
         return null;
 
     }
 
     @Override
     public Void visitDecl(Stmt.Decl decl) {
-        if(decl.expr==null) env.put(decl.identifier, null);
-        else env.put(decl.identifier, evaluate(decl.expr));
+        Object value = decl.expr == null ? null : evaluate(decl.expr);
+        if(decl.slot < 0) globals.put(decl.identifier, value);
+        else if (decl.captured) env.slots[decl.slot] = new Cell(value);
+        else env.slots[decl.slot] = value;
         return null;
     }
 
     @Override
     public Void visitBlock(Stmt.Block block) {
-        executeBlock(block.stmts, new Env(env));
+        if (block.slotCount > 0) env.reserve(block.slotCount);
+        for (Stmt stmt : block.stmts) {
+            executeStmt(stmt);
+        }
         return null;
     }
 
@@ -250,26 +556,69 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitWhileStmt(Stmt.WhileStmt whileStmt) {
-        while(isTruthy(evaluate((whileStmt.condition))) && !breakState) {
-            executeStmt(whileStmt.body);
+        while(isTruthy(evaluate((whileStmt.condition)))) {
+            try {
+                executeStmt(whileStmt.body);
+            } catch (LoopControl control) {
+                if (control == LoopControl.BREAK) break;
+            }
         }
-        breakState = false;
         return null;
     }
 
     @Override
-    public Void visitLoopControlStmt(Stmt.LoopControlStmt loopControlStmt) {
-        Token token = loopControlStmt.keyWord;
-        if(token.type == TokenType.BREAK) breakState=true;
+    public Void visitForStmt(Stmt.ForStmt forStmt) {
+        if (forStmt.slotCount > 0) env.reserve(forStmt.slotCount);
+        if (forStmt.initializer != null) executeStmt(forStmt.initializer);
+        while (forStmt.condition == null || isTruthy(evaluate(forStmt.condition))) {
+            try {
+                executeStmt(forStmt.body);
+            } catch (LoopControl control) {
+                if (control == LoopControl.BREAK) break;
+            }
+            if (forStmt.increment != null) evaluate(forStmt.increment);
+        }
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.ImportStmt importStmt) {
+        imports.add(importStmt);
+        return null;
+    }
+    // a module's top-level code runs in the global scope with a frame of its own, wherever the lookup that needed it happened
+    private void runModule(List<Stmt> statements) {
+        executeBlock(statements, new Env());
+    }
+
+    @Override
+    public Void visitLoopControlStmt(Stmt.LoopControlStmt loopControlStmt) {
+        throw loopControlStmt.keyWord.type == TokenType.BREAK ? LoopControl.BREAK : LoopControl.CONTINUE;
+    }
+
     @Override
     public Void visitFunctionDecl(Stmt.FunctionDecl functionDecl) {
-        SulFunction function = new SulFunction(functionDecl, env);
-        env.put(functionDecl.name, function);
+        if (functionDecl.slot < 0) {
+            globals.put(functionDecl.name, new SulFunction(functionDecl, upvalues(functionDecl)));
+        } else if (functionDecl.captured) {
+            // the cell exists before the closure, so a function can capture itself
+            Cell cell = new Cell(null);
+            env.slots[functionDecl.slot] = cell;
+            cell.value = new SulFunction(functionDecl, upvalues(functionDecl));
+        } else {
+            env.slots[functionDecl.slot] = new SulFunction(functionDecl, upvalues(functionDecl));
+        }
         return null;
     }
+    private Cell[] upvalues(Stmt.FunctionDecl functionDecl) {
+        int[] captures = functionDecl.captures;
+        Cell[] upvalues = new Cell[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int capture = captures[i];
+            upvalues[i] = capture >= 0 ? (Cell) env.slots[capture] : env.upvalues[-1 - capture];
+        }
+        return upvalues;
+    }
 
     public void executeBlock(List<Stmt> block, Env env_) {
         Env previous = env;
@@ -288,22 +637,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
     private void checkUnaryType(Object expr, Token operator) {
         if(expr instanceof Double) return;
-        if(expr instanceof String) {
+        if(expr instanceof CharSequence) {
             throw new RuntimeError(operator, "operator must be a number");
         }
     }
-    private void checkBinaryType(Object left,Object right, Token operator) {
-        switch (operator.type) {
-            case SLASH:
-                if((Double)right == 0)
-                    throw new RuntimeError(operator, "cannot divide by 0");
-        }
-        if(left instanceof Double && right instanceof Double) return;
-        if(left instanceof String || right instanceof String)
-            throw new RuntimeError(operator, "operator must be a number");
-    }
     @Override
     public Void visitReturnStmt(Stmt.ReturnStmt stmt) {
+        Expr.CallExpr tailCall = stmt.tailCallExpr();
+        if (tailCall != null) {
+            Object name = evaluate(tailCall.name);
+            int count = tailCall.args.size();
+            // as in any call the arguments run before the callee is checked
+            if (name instanceof SulFunction && ((SulFunction) name).arity() == count) {
+                // SulFunction runs it after this frame is gone, so tail calls do not grow the Java stack
+                SulFunction function = (SulFunction) name;
+                Env frame = function.frame();
+                for (int i = 0; i < count; i++) {
+                    frame.slots[i] = evaluate(tailCall.args.get(i));
+                }
+                if (name != tailCall.cachedCallee) checkCallee(tailCall, name, count);
+                throw new Return(new TailCall(function, frame));
+            }
+            List<Object> arguments = evaluateArguments(tailCall);
+            if (name != tailCall.cachedCallee) checkCallee(tailCall, name, count);
+            try {
+                throw new Return(invoke((SulCallable) name, arguments));
+            } catch (RuntimeError error) {
+                throw atCall(error, tailCall);
+            }
+        }
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
@@ -0,0 +1,40 @@
+package com.sul;
+
+import com.sul.opt.Pass;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// the tokens of a top-level function body the Parser only brace-matched
+final class LazyBody {
+    final List<Token> tokens;
+    // the right brace closing the body, stands in for the end of the input
+    final Token end;
+    final List<Pass> passes = new ArrayList<>();
+
+    LazyBody(List<Token> tokens, Token end) {
+        this.tokens = tokens;
+        this.end = end;
+    }
+
+    List<Stmt> compile(Stmt.FunctionDecl function) {
+        ErrorList errors = new ErrorList();
+        Iterator<Token> next = tokens.iterator();
+        Token finish = new Token(TokenType.FINISH, end.position, "", null);
+        List<Stmt> body = new Parser(() -> next.hasNext() ? next.next() : finish, errors).parseBody();
+        if (body != null && errors.isEmpty()) {
+            // top-level, so everything the body does not declare itself is a global
+            function.body = body;
+            new Resolver(errors).resolveBody(function);
+        }
+        if (body == null || !errors.isEmpty()) {
+            function.body = null;
+            SulError error = errors.errors.get(0);
+            throw new RuntimeError(function.name,
+                    "in " + function.name.lexeme() + ", line " + error.line + ": " + error.message);
+        }
+        for (Pass pass : passes) body = pass.run(body);
+        return body;
+    }
+}
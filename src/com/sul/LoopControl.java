@@ -0,0 +1,11 @@
+package com.sul;
+
+// thrown by break and continue and caught by the innermost loop, shared since it carries nothing
+class LoopControl extends RuntimeException {
+    static final LoopControl BREAK = new LoopControl();
+    static final LoopControl CONTINUE = new LoopControl();
+
+    private LoopControl() {
+        super(null, null, false, false);
+    }
+}
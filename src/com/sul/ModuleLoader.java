@@ -0,0 +1,123 @@
+package com.sul;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Scans, parses and resolves imported files on the common fork-join pool, keyed by canonical path, and
+ * the imports a file contains are started right away so a whole import graph loads in parallel. A later
+ * import of the same path reads the file again on the pool and keeps the loaded module only while the
+ * content hash still matches, so an edited module is picked up by the next run. A failed load is dropped,
+ * the next import tries again. Running a module is left to the engine, see Imports.
+ */
+public final class ModuleLoader {
+    public static final class Module {
+        public final Path path;
+        // of the source the module was loaded from
+        private final byte[] hash;
+        // resolved but not optimized, serialized so every engine running the module gets its own tree
+        private final byte[] tree;
+        // top-level names the module declares, a reference to any of them runs it
+        public final Set<Symbol> exports;
+
+        Module(Path path, byte[] hash, byte[] tree, Set<Symbol> exports) {
+            this.path = path;
+            this.hash = hash;
+            this.tree = tree;
+            this.exports = exports;
+        }
+        public List<Stmt> statements() {
+            List<Stmt> statements = AstCache.deserialize(tree);
+            for (Stmt stmt : statements) {
+                if (stmt instanceof Stmt.ImportStmt) prefetch((Stmt.ImportStmt) stmt, path.getParent());
+            }
+            return statements;
+        }
+    }
+    private static final class LoadTask extends RecursiveTask<Module> {
+        private final Path path;
+        // loaded from this path earlier, returned again when the file did not change
+        private final Module previous;
+
+        LoadTask(Path path, Module previous) {
+            this.path = path;
+            this.previous = previous;
+        }
+        @Override
+        protected Module compute() {
+            try {
+                return load(path, previous);
+            } catch (RuntimeException e) {
+                MODULES.remove(path, this);
+                throw e;
+            }
+        }
+    }
+    private static final ConcurrentHashMap<Path, LoadTask> MODULES = new ConcurrentHashMap<>();
+
+    private ModuleLoader() {
+    }
+    // starts loading the file an import names, relative to the directory of the importing file
+    static void prefetch(Stmt.ImportStmt stmt, Path directory) {
+        Path path = directory.resolve(stmt.file).toAbsolutePath().normalize();
+        try {
+            path = path.toRealPath();
+        } catch (IOException e) {
+            // loading reports the missing file when the module is first needed
+        }
+        // a load still running is shared, a finished one is checked against the file by a new task
+        LoadTask[] created = new LoadTask[1];
+        stmt.module = MODULES.compute(path, (key, task) -> {
+            if (task != null && !task.isDone()) return task;
+            Module previous = task != null && task.isCompletedNormally() ? task.getRawResult() : null;
+            return created[0] = new LoadTask(key, previous);
+        });
+        if (created[0] != null) created[0].fork();
+    }
+    private static Module load(Path path, Module previous) {
+        byte[] source;
+        try {
+            source = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            throw new IllegalStateException("no such file " + path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] hash = AstCache.hash(source);
+        if (previous != null && Arrays.equals(previous.hash, hash)) return previous;
+        List<Stmt> statements = AstCache.ENABLED ? AstCache.load(path, hash) : null;
+        if (statements == null) {
+            statements = parse(path, new String(source, Charset.defaultCharset()));
+            if (AstCache.ENABLED) {
+                AstCache.Writer cache = new AstCache.Writer(path, hash);
+                for (Stmt stmt : statements) cache.add(stmt);
+                cache.finish();
+            }
+        }
+        Set<Symbol> exports = new LinkedHashSet<>();
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.Decl) exports.add(((Stmt.Decl) stmt).identifier.symbol());
+            else if (stmt instanceof Stmt.FunctionDecl) exports.add(((Stmt.FunctionDecl) stmt).name.symbol());
+            else if (stmt instanceof Stmt.ImportStmt) prefetch((Stmt.ImportStmt) stmt, path.getParent());
+        }
+        return new Module(path, hash, AstCache.serialize(statements), Collections.unmodifiableSet(exports));
+    }
+    private static List<Stmt> parse(Path path, String source) {
+        ErrorList errors = new ErrorList();
+        List<Stmt> statements = new Parser(new Scanner(source, errors), errors).parse();
+        if (statements != null && errors.isEmpty()) new Resolver(errors).resolve(statements);
+        if (!errors.isEmpty()) throw new IllegalStateException(path + ": " + errors.errors.get(0));
+        return statements;
+    }
+}
@@ -0,0 +1,86 @@
+package com.sul;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+
+// a Java static method bound by NativeRegistry, its arguments and result were adapted once at registration
+final class NativeFunction implements SulCallable {
+    private final String name;
+    private final int arity;
+    // (Object, ...)Object, converts and checks the arguments itself
+    private final MethodHandle handle;
+    // the same handle taking the arguments as one Object[]
+    private final MethodHandle spreader;
+
+    NativeFunction(String name, MethodHandle handle) {
+        this.name = name;
+        this.arity = handle.type().parameterCount();
+        this.handle = handle;
+        this.spreader = handle.asSpreader(Object[].class, arity);
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        try {
+            return (Object) spreader.invokeExact(arguments.toArray());
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+    // callers checked arity(), so the handle has exactly the shape invoked here
+    @Override
+    public Object call0(Interpreter interpreter) {
+        try {
+            return (Object) handle.invokeExact();
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        try {
+            return (Object) handle.invokeExact(a);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        try {
+            return (Object) handle.invokeExact(a, b);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        try {
+            return (Object) handle.invokeExact(a, b, c);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        try {
+            return (Object) handle.invokeExact(a, b, c, d);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+    // anything the host method throws becomes a Sul runtime error, only JVM errors get through as they are
+    private RuntimeError failure(Throwable e) {
+        if (e instanceof RuntimeError) return (RuntimeError) e;
+        if (e instanceof Error) throw (Error) e;
+        return new RuntimeError(name + " failed: " + e);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
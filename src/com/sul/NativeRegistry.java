@@ -0,0 +1,125 @@
+package com.sul;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Binds Java static methods as Sul globals. A parameter is double, String, boolean or Object, and a method
+ * returns a number, boolean, String, nothing, a Sul value or Object, which the host has to fill with a Sul
+ * value itself; any other signature is refused when it is registered. The conversions are folded into the
+ * method's handle at registration, so a call from Sul is one invokeExact with the arguments as they are, no
+ * reflection and no argument list. A wrong argument type fails with a Sul runtime error naming the native.
+ */
+public final class NativeRegistry {
+    private static final MethodHandle TO_DOUBLE;
+    private static final MethodHandle TO_STRING;
+    private static final MethodHandle TO_BOOLEAN;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TO_DOUBLE = lookup.findStatic(NativeRegistry.class, "toDouble",
+                    MethodType.methodType(double.class, Object.class, String.class, int.class));
+            TO_STRING = lookup.findStatic(NativeRegistry.class, "toString",
+                    MethodType.methodType(String.class, Object.class, String.class, int.class));
+            TO_BOOLEAN = lookup.findStatic(NativeRegistry.class, "toBoolean",
+                    MethodType.methodType(boolean.class, Object.class, String.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    // reference types a native may declare as its result, they hold Sul values as they are
+    private static final Set<Class<?>> RESULTS = Set.of(Object.class, String.class, CharSequence.class, Rope.class,
+            Double.class, Boolean.class, SulArray.class, SulMap.class);
+    // what every engine installs unless the host hands it a registry of its own
+    private static final Map<String, SulCallable> BUILTINS = builtins().natives();
+
+    private final Map<String, NativeFunction> natives = new LinkedHashMap<>();
+
+    // the natives every Sul script can use: clock, len, push, get, put, remove and size
+    public static NativeRegistry builtins() {
+        return new NativeRegistry().register(Natives.class);
+    }
+    public static Map<String, SulCallable> builtinNatives() {
+        return BUILTINS;
+    }
+    // a script may declare a global named like a native, its declaration replaces the native
+    public static boolean isNative(Object value) {
+        return value instanceof NativeFunction;
+    }
+
+    // a later registration under the same name replaces the earlier one
+    public NativeRegistry register(String name, MethodHandle handle) {
+        natives.put(name, new NativeFunction(name, adapt(name, handle)));
+        return this;
+    }
+    // every public static method of owner under its own name, sorted so globals come out in a stable order
+    public NativeRegistry register(Class<?> owner) {
+        Method[] methods = owner.getDeclaredMethods();
+        Arrays.sort(methods, Comparator.comparing(Method::getName));
+        Map<String, MethodHandle> handles = new LinkedHashMap<>();
+        for (Method method : methods) {
+            int modifiers = method.getModifiers();
+            if (!Modifier.isPublic(modifiers) || !Modifier.isStatic(modifiers) || method.isSynthetic()) continue;
+            try {
+                if (handles.put(method.getName(), MethodHandles.publicLookup().unreflect(method)) != null) {
+                    throw new IllegalArgumentException("overloaded native: " + method.getName());
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("cannot access " + method, e);
+            }
+        }
+        handles.forEach(this::register);
+        return this;
+    }
+    public Map<String, SulCallable> natives() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(natives));
+    }
+
+    // to (Object, ...)Object with every argument checked and converted inside
+    private static MethodHandle adapt(String name, MethodHandle handle) {
+        MethodType type = handle.type();
+        MethodHandle[] filters = new MethodHandle[type.parameterCount()];
+        for (int i = 0; i < filters.length; i++) {
+            Class<?> parameter = type.parameterType(i);
+            if (parameter == double.class) filters[i] = MethodHandles.insertArguments(TO_DOUBLE, 1, name, i + 1);
+            else if (parameter == String.class) filters[i] = MethodHandles.insertArguments(TO_STRING, 1, name, i + 1);
+            else if (parameter == boolean.class) filters[i] = MethodHandles.insertArguments(TO_BOOLEAN, 1, name, i + 1);
+            else if (parameter != Object.class) {
+                throw new IllegalArgumentException(name + ": unsupported parameter type " + parameter.getName());
+            }
+        }
+        handle = MethodHandles.filterArguments(handle, 0, filters);
+        // Sul numbers are doubles, so an int or a long comes back as one; void comes back as nihil
+        Class<?> result = type.returnType();
+        if (result == char.class || !result.isPrimitive() && !RESULTS.contains(result)
+                && !SulCallable.class.isAssignableFrom(result)) {
+            throw new IllegalArgumentException(name + ": unsupported return type " + result.getName());
+        }
+        if (result.isPrimitive() && result != boolean.class && result != void.class) {
+            handle = handle.asType(handle.type().changeReturnType(double.class));
+        }
+        return handle.asType(MethodType.genericMethodType(filters.length));
+    }
+    private static double toDouble(Object value, String name, int position) {
+        if (value instanceof Double) return (Double) value;
+        throw new RuntimeError(name + " expects a number as argument " + position);
+    }
+    // ropes are flattened, the host method sees an ordinary String
+    private static String toString(Object value, String name, int position) {
+        if (value instanceof CharSequence) return value.toString();
+        throw new RuntimeError(name + " expects a string as argument " + position);
+    }
+    private static boolean toBoolean(Object value, String name, int position) {
+        if (value instanceof Boolean) return (Boolean) value;
+        throw new RuntimeError(name + " expects a boolean as argument " + position);
+    }
+}
@@ -0,0 +1,45 @@
+package com.sul;
+
+// the built-in natives, NativeRegistry binds every public static method here under its own name
+public final class Natives {
+    private Natives() {
+    }
+    // seconds since the epoch
+    public static double clock() {
+        return (double) System.currentTimeMillis() / 1000.0;
+    }
+    // length of an array or a string
+    public static double len(Object value) {
+        if (value instanceof SulArray) return ((SulArray) value).size();
+        if (value instanceof CharSequence) return ((CharSequence) value).length();
+        throw new RuntimeError("len expects an array or a string");
+    }
+    // appends to an array
+    public static void push(Object array, Object value) {
+        if (!(array instanceof SulArray)) throw new RuntimeError("push expects an array");
+        ((SulArray) array).push(value);
+    }
+    // value stored under key, nihil when the map has no such key
+    public static Object get(Object map, Object key) {
+        return map(map, "get").get(key(key));
+    }
+    public static void put(Object map, Object key, Object value) {
+        map(map, "put").put(key(key), value);
+    }
+    // drops key, returns the value it had or nihil
+    public static Object remove(Object map, Object key) {
+        return map(map, "remove").remove(key(key));
+    }
+    // number of keys in a map
+    public static double size(Object map) {
+        return map(map, "size").size();
+    }
+    private static SulMap map(Object value, String name) {
+        if (value instanceof SulMap) return (SulMap) value;
+        throw new RuntimeError(name + " expects a map");
+    }
+    private static Object key(Object key) {
+        if (SulMap.isKey(key)) return key;
+        throw new RuntimeError("map keys must be numbers, strings, booleans or nihil");
+    }
+}
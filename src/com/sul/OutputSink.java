@@ -0,0 +1,103 @@
+package com.sul;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/*
+ * Where print goes. Lines collect in a char buffer that is written out in one piece when it fills up, when
+ * the oldest line in it has waited longer than the delay, and whenever the owner calls flush(): at the end
+ * of a run, before an error is reported and after each REPL input. The delay is only checked when a line
+ * is printed, a script that goes quiet keeps its last lines until one of the other flush points. A capacity
+ * of 0 writes every line as it is printed, which is what a terminal gets. Integral numbers are formatted
+ * straight into the buffer without making a String.
+ */
+public final class OutputSink {
+    // -Dsul.out.buffer in chars, -Dsul.out.delay in milliseconds
+    public static final int BUFFER = Integer.getInteger("sul.out.buffer", 1 << 16);
+    private static final long DELAY = Long.getLong("sul.out.delay", 100) * 1_000_000L;
+    // the longest integral number written without Double.toString, larger ones print in E notation
+    private static final long PLAIN_LIMIT = 10_000_000L;
+    private final Writer writer;
+    // the buffer is flushed once it holds this many chars
+    private final int capacity;
+    private final char[] buffer;
+    private int length = 0;
+    // System.nanoTime() of the first line still in the buffer
+    private long since;
+
+    public OutputSink(OutputStream target, Charset charset, int capacity) {
+        this.writer = new OutputStreamWriter(target, charset);
+        this.capacity = capacity;
+        this.buffer = new char[Math.max(capacity, 256)];
+    }
+
+    public void println(Object value) {
+        boolean empty = length == 0;
+        if (value instanceof Double && isPlain((Double) value)) appendInteger((long) (double) (Double) value);
+        else append(Interpreter.makeValidString(value));
+        append('\n');
+        if (length >= capacity) flush();
+        else if (empty) since = System.nanoTime();
+        else if (System.nanoTime() - since >= DELAY) flush();
+    }
+    public void flush() {
+        try {
+            writer.write(buffer, 0, length);
+            length = 0;
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // true for the numbers Interpreter.makeValidString prints as a plain integer, -0 keeps its sign there
+    static boolean isPlain(double value) {
+        return value == (long) value && value > -PLAIN_LIMIT && value < PLAIN_LIMIT
+                && (value != 0 || Double.doubleToRawLongBits(value) == 0);
+    }
+    private void appendInteger(long value) {
+        if (buffer.length - length < 20) flush();
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int end = length + digits(value);
+        for (int i = end - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length = end;
+    }
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+    private void append(String text) {
+        if (text.length() > buffer.length - length) {
+            flush();
+            // longer than the whole buffer, written through instead of copied
+            if (text.length() > buffer.length) {
+                try {
+                    writer.write(text);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+        }
+        text.getChars(0, text.length(), buffer, length);
+        length += text.length();
+    }
+    private void append(char c) {
+        if (length == buffer.length) flush();
+        buffer[length++] = c;
+    }
+}
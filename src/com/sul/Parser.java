@@ -1,26 +1,53 @@
 package com.sul;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class Parser {
     private static class ParseError extends RuntimeException {
 
     }
-    List<Token> tokens;
-    int current;
-    Parser(List<Token> tokens) {
+    // -Dsul.lazy=true only brace-matches top-level function bodies, they are parsed on their first call
+    static final boolean LAZY = Boolean.getBoolean("sul.lazy");
+    // tokens are pulled from the Scanner one at a time, only the current and the previous one are kept
+    private final Supplier<Token> tokens;
+    // blocks the parser is inside of, function bodies are only deferred at 0
+    private int depth = 0;
+    private Token currentToken;
+    private Token previousToken;
+    private boolean hadError = false;
+    // the first syntax error was found at the end of the input, more input might complete the statement
+    private boolean endReached = false;
+    private final ErrorReporter reporter;
+    Parser(Scanner scanner, ErrorReporter reporter) {
+        this(scanner::nextToken, reporter);
+    }
+    Parser(Supplier<Token> tokens, ErrorReporter reporter) {
         this.tokens = tokens;
-        this.current = 0;
+        this.reporter = reporter;
+        this.currentToken = tokens.get();
     }
     public List<Stmt> parse() {
-        try{
-            List<Stmt> statements = new ArrayList<>();
-            while(atTheEnd()) statements.add(declaration());
-            return statements;
+        List<Stmt> statements = new ArrayList<>();
+        while(atTheEnd()) {
+            Stmt stmt = nextStatement();
+            if (hadError) return null;
+            statements.add(stmt);
+        }
+        return statements;
+    }
+    // the statements of a deferred function body, null after a syntax error
+    List<Stmt> parseBody() {
+        depth = 1;
+        return parse();
+    }
+    // the next top-level statement, null at the end of the input or after a syntax error
+    public Stmt nextStatement() {
+        if (!atTheEnd()) return null;
+        try {
+            return declaration();
         } catch (ParseError e) {
-            Sul.hadError = true;
             return null;
         }
     }
@@ -32,6 +59,9 @@ public class Parser {
             if(match(TokenType.FUN)) {
                 return funDeclaration("fun");
             }
+            if(match(TokenType.IMPORT)) {
+                return importDeclaration();
+            }
         } catch(ParseError e) {
             synchronize();
             return null;
@@ -42,10 +72,10 @@ public class Parser {
         Token name = consume(TokenType.EOF, "Expect " + type + " name.");
         consume(TokenType.LEFT_PAREN, "Expect '(' after " + type + " name.");
         List<Token> parameters = new ArrayList<>();
-        if (tokens.get(current).type != TokenType.RIGHT_PAREN) {
+        if (currentToken().type != TokenType.RIGHT_PAREN) {
             do {
                 if (parameters.size() >= 255) {
-                    Sul.error(tokens.get(current).position,
+                    report(currentToken().position,
                             "Can't have more than 255 parameters.");
                 }
 
@@ -55,10 +85,30 @@ public class Parser {
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
         consume(TokenType.LEFT_BRACE, "Expect '{' before " + type + " body.");
+        if (LAZY && depth == 0) return new Stmt.FunctionDecl(name, parameters, preParse());
         List<Stmt> body = block();
         return new Stmt.FunctionDecl(name, parameters, body);
 
     }
+    // keeps the tokens up to the matching right brace, which is consumed
+    private LazyBody preParse() {
+        List<Token> body = new ArrayList<>();
+        int braces = 1;
+        while (atTheEnd()) {
+            TokenType type = currentToken().type;
+            if (type == TokenType.LEFT_BRACE) braces++;
+            else if (type == TokenType.RIGHT_BRACE && --braces == 0) break;
+            body.add(next());
+        }
+        Token end = consume(TokenType.RIGHT_BRACE, "expected end of block");
+        return new LazyBody(body, end);
+    }
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token file = consume(TokenType.STRING, "Expect module path after import.");
+        consume(TokenType.SEMICOLON, "expected semicolon after import");
+        return new Stmt.ImportStmt(keyword, (String) file.value);
+    }
     private Stmt varDeclaration() {
         Token name = consume(TokenType.EOF, "expected variable name");
         Expr initializer = null;
@@ -81,7 +131,7 @@ public class Parser {
     private Stmt returnStmt() {
         Token keyword = previous();
         Expr value = null;
-        if (tokens.get(current).type != TokenType.SEMICOLON) {
+        if (currentToken().type != TokenType.SEMICOLON) {
             value = expression();
         }
 
@@ -89,7 +139,7 @@ public class Parser {
         return new Stmt.ReturnStmt(keyword, value);
     }
     private Stmt loopControl(Token token) {
-        consume(TokenType.SEMICOLON, "expected semicolon after: " + token.lexeme);
+        consume(TokenType.SEMICOLON, "expected semicolon after: " + token.lexeme());
         return new Stmt.LoopControlStmt(token);
     }
     private Stmt whileStmt() {
@@ -111,25 +161,12 @@ public class Parser {
             consume(TokenType.SEMICOLON, "expected semicolon after for condition");
         }
         Expr increment = null;
-        if(tokens.get(current).type != TokenType.RIGHT_PAREN) {
+        if(currentToken().type != TokenType.RIGHT_PAREN) {
             increment = expression();
         }
         consume(TokenType.RIGHT_PAREN, "expected: ) after for increment");
         Stmt body = statement();
-        if(increment != null) {
-            body = new Stmt.Block(Arrays.asList(
-                    body,
-                    new Stmt.Expression(increment)));
-        }
-        if(condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.WhileStmt(condition, body);
-        if(initializer!=null)
-            body = new Stmt.Block(Arrays.asList(
-                    initializer,
-                    body
-            ));
-        return body;
-
+        return new Stmt.ForStmt(initializer, condition, increment, body);
     }
     private Stmt ifStmt() {
         Stmt elseStmt = null;
@@ -142,20 +179,23 @@ public class Parser {
     }
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
-        while(atTheEnd() && currentToken().type != TokenType.RIGHT_BRACE) {
-            statements.add(declaration());
+        depth++;
+        try {
+            while(atTheEnd() && currentToken().type != TokenType.RIGHT_BRACE) {
+                statements.add(declaration());
+            }
+        } finally {
+            depth--;
         }
         consume(TokenType.RIGHT_BRACE, "expected end of block");
         return statements;
     }
     private void stmtEndingCheck() {
         if(currentToken().type == TokenType.RIGHT_PAREN) {
-            Sul.error(currentToken().position, "unexpected right parenthesis");
-            System.exit(1);
+            throw error("unexpected right parenthesis");
         }
         if(currentToken().type == TokenType.RIGHT_BRACE) {
-            Sul.error(currentToken().position, "unexpected right bracket");
-            System.exit(1);
+            throw error("unexpected right bracket");
         }
     }
     private Stmt statementExpression() {
@@ -179,6 +219,10 @@ public class Parser {
                 Token name = ((Expr.Variable) expr).name;
                 return new Expr.Assigment(name,value);
             }
+            if(expr instanceof Expr.Index) {
+                Expr.Index index = (Expr.Index) expr;
+                return new Expr.IndexAssigment(index.array, index.bracket, index.index, value);
+            }
             throw error("cannot assign, expected variable");
         }
         return expr;
@@ -250,32 +294,65 @@ public class Parser {
     }
     private Expr call() {
         Expr primary = primary();
-        if(match(TokenType.LEFT_PAREN)) {
-            primary = callExpr(primary);
+        for (;;) {
+            if(match(TokenType.LEFT_PAREN)) {
+                primary = callExpr(primary);
+            } else if(match(TokenType.LEFT_BRACKET)) {
+                Token bracket = previous();
+                Expr index = expression();
+                consume(TokenType.RIGHT_BRACKET, "expected ] after index");
+                primary = new Expr.Index(primary, bracket, index);
+            } else {
+                return primary;
+            }
         }
-        return primary;
     }
     private Expr callExpr(Expr primary) {
         List<Expr> args = new ArrayList<>();
-        if(tokens.get(current).type != TokenType.RIGHT_PAREN) {
+        if(currentToken().type != TokenType.RIGHT_PAREN) {
             do {
                 if(args.size() >= 255)
-                    Sul.error(currentToken().position, "too many arguments");
+                    report(currentToken().position, "too many arguments");
                 args.add(expression());
             } while(match(TokenType.COMMA));
         }
         Token parenthesis = consume(TokenType.RIGHT_PAREN, "expected end of parenthesis");
         return new Expr.CallExpr(primary, args, parenthesis);
     }
+    private Expr arrayLiteral() {
+        Token bracket = previous();
+        List<Expr> elements = new ArrayList<>();
+        if(currentToken().type != TokenType.RIGHT_BRACKET) {
+            do {
+                if(elements.size() >= 0xffff)
+                    report(currentToken().position, "too many elements");
+                elements.add(expression());
+            } while(match(TokenType.COMMA));
+        }
+        consume(TokenType.RIGHT_BRACKET, "expected ] after array elements");
+        return new Expr.ArrayLiteral(bracket, elements);
+    }
+    // only reached in expression position, a { that starts a statement is still a block
+    private Expr mapLiteral() {
+        Token brace = previous();
+        List<Expr> keys = new ArrayList<>();
+        List<Expr> values = new ArrayList<>();
+        if(currentToken().type != TokenType.RIGHT_BRACE) {
+            do {
+                if(keys.size() >= 0xffff)
+                    report(currentToken().position, "too many entries");
+                keys.add(expression());
+                consume(TokenType.COLON, "expected : after map key");
+                values.add(expression());
+            } while(match(TokenType.COMMA));
+        }
+        consume(TokenType.RIGHT_BRACE, "expected } after map entries");
+        return new Expr.MapLiteral(brace, keys, values);
+    }
     private Expr primary() {
         Expr expr;
-        int finished = current;
         if(match(TokenType.NULL)) return new Expr.Literal(null);
-        if(match(TokenType.STRING, TokenType.NUMBER)) {
-            if(finished==current) expr = new Expr.Literal(currentToken().value);
-            else expr = new Expr.Literal(previous().value);
-            return expr;
-        }
+        if(match(TokenType.STRING, TokenType.NUMBER)) return new Expr.Literal(previous().value);
         if(match(TokenType.TRUE)) return new Expr.Literal(true);
         if(match(TokenType.FALSE)) return new Expr.Literal(false);
         if(match(TokenType.LEFT_PAREN)) {
@@ -284,6 +361,8 @@ public class Parser {
             return new Expr.Grouping(expr);
 
         }
+        if(match(TokenType.LEFT_BRACKET)) return arrayLiteral();
+        if(match(TokenType.LEFT_BRACE)) return mapLiteral();
         if(match(TokenType.EOF))
             return new Expr.Variable(previous());
         stmtEndingCheck();
@@ -294,9 +373,14 @@ public class Parser {
         throw error(message);
     }
     private ParseError error(String message) {
-        Sul.error(currentToken().position, message);
+        if (!hadError) endReached = !atTheEnd();
+        report(currentToken().position, message);
         return new ParseError();
     }
+    private void report(int line, String message) {
+        reporter.error(line, message);
+        hadError = true;
+    }
     private void synchronize() {
         next();
 
@@ -317,18 +401,24 @@ public class Parser {
             next();
         }
     }
+    boolean endReached() {
+        return endReached;
+    }
     private boolean atTheEnd() {
-        return current != (tokens.size()-1);
+        return currentToken.type != TokenType.FINISH;
     }
     public Token next() {
-        if(atTheEnd()) return tokens.get(current++);
+        if(atTheEnd()) {
+            previousToken = currentToken;
+            currentToken = tokens.get();
+        }
         return previous();
     }
     private Token currentToken() {
-        return tokens.get(current);
+        return currentToken;
     }
     private Token previous() {
-        return tokens.get(current-1);
+        return previousToken;
     }
     private boolean match(TokenType ...types) {
         for (TokenType type : types) {
@@ -0,0 +1,126 @@
+package com.sul;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Sampling profiler for Sul code. Engines keep a shadow stack with one name:line label per Sul call, a
+ * daemon thread copies it at a fixed interval. The shadow stack is read without locking, so a sample
+ * taken during a call or return may be off by one frame, which sampling tolerates anyway.
+ */
+public final class Profiler {
+    private static final String ROOT = "<script>";
+    private final Path output;
+    private final long intervalNanos;
+    private volatile String[] frames = new String[64];
+    private volatile int depth = 0;
+    // stack collapsed into one ;-separated line to sample count, only the sampler writes it
+    private final Map<String, Integer> samples = new HashMap<>();
+    private volatile boolean running = false;
+    private Thread sampler;
+
+    public Profiler(Path output, long intervalMicros) {
+        this.output = output;
+        this.intervalNanos = Math.max(1, intervalMicros) * 1000;
+    }
+    public static String label(Token name) {
+        return name.lexeme() + ":" + name.position;
+    }
+
+    public void enter(String label) {
+        String[] stack = frames;
+        if (depth == stack.length) frames = stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth] = label;
+        depth++;
+    }
+    public void exit() {
+        depth--;
+    }
+    // a tail call replaces its caller's frame
+    public void replace(String label) {
+        frames[depth - 1] = label;
+    }
+
+    void start() {
+        running = true;
+        sampler = new Thread(() -> {
+            while (running) {
+                LockSupport.parkNanos(intervalNanos);
+                sample();
+            }
+        }, "sul-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+    private void sample() {
+        int size = depth;
+        String[] stack = frames;
+        StringBuilder line = new StringBuilder(ROOT);
+        for (int i = 0; i < size && i < stack.length; i++) {
+            if (stack[i] != null) line.append(';').append(stack[i]);
+        }
+        samples.merge(line.toString(), 1, Integer::sum);
+    }
+
+    // stops sampling, writes the collapsed stacks and prints the self/total table
+    void finish(PrintStream out) {
+        if (!running) return;
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(output))) {
+            for (Map.Entry<String, Integer> entry : samples.entrySet()) {
+                writer.println(entry.getKey() + " " + entry.getValue());
+            }
+        } catch (IOException e) {
+            out.println("profile: cannot write " + output + ": " + e.getMessage());
+        }
+        table(out);
+    }
+    private void table(PrintStream out) {
+        Map<String, Integer> self = new HashMap<>();
+        Map<String, Integer> total = new HashMap<>();
+        int count = 0;
+        for (Map.Entry<String, Integer> entry : samples.entrySet()) {
+            String[] stack = entry.getKey().split(";");
+            int hits = entry.getValue();
+            count += hits;
+            self.merge(stack[stack.length - 1], hits, Integer::sum);
+            // recursion must not count a sample twice
+            Set<String> seen = new HashSet<>(Arrays.asList(stack));
+            for (String frame : seen) {
+                total.merge(frame, hits, Integer::sum);
+            }
+        }
+        double millis = intervalNanos / 1e6;
+        out.printf("profile: %d samples every %.3fms, collapsed stacks in %s%n", count, millis, output);
+        if (count == 0) return;
+        out.printf("%8s %10s %8s %10s  %s%n", "self%", "self ms", "total%", "total ms", "function");
+        List<String> functions = new ArrayList<>(total.keySet());
+        functions.sort((a, b) -> {
+            int bySelf = Integer.compare(self.getOrDefault(b, 0), self.getOrDefault(a, 0));
+            return bySelf != 0 ? bySelf : Integer.compare(total.get(b), total.get(a));
+        });
+        for (String function : functions) {
+            int selfHits = self.getOrDefault(function, 0);
+            int totalHits = total.get(function);
+            out.printf("%7.1f%% %10.1f %7.1f%% %10.1f  %s%n",
+                    100.0 * selfHits / count, selfHits * millis,
+                    100.0 * totalHits / count, totalHits * millis, function);
+        }
+    }
+}
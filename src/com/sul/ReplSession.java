@@ -0,0 +1,84 @@
+package com.sul;
+
+import com.sul.opt.PassManager;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * An interactive session fed one line at a time. Lines are buffered until they form complete statements,
+ * so a function can span lines, and an empty line runs whatever is buffered. Errors are reported and the
+ * session goes on. The Resolver and the engine live as long as the session, the text and trees of a
+ * finished input are dropped as soon as it ran; only what the script itself keeps, like globals and
+ * closures, stays reachable.
+ */
+public final class ReplSession {
+    private final ErrorReporter reporter;
+    private final Consumer<List<Stmt>> engine;
+    private final PassManager optimizer;
+    private final Resolver resolver;
+    private final Path directory;
+    private final StringBuilder pending = new StringBuilder();
+    private int resolveErrors = 0;
+
+    public ReplSession(ErrorReporter reporter, PrintStream out) {
+        this(reporter, PassManager.defaults(), out);
+    }
+    // unbuffered, the caller reads out between inputs
+    private ReplSession(ErrorReporter reporter, PassManager optimizer, PrintStream out) {
+        this(reporter, optimizer, new Interpreter(reporter, optimizer, new OutputSink(out, out.charset(), 0))::interpret);
+    }
+    // engine runs resolved and optimized statements and reports its own runtime errors
+    ReplSession(ErrorReporter reporter, PassManager optimizer, Consumer<List<Stmt>> engine) {
+        this.reporter = reporter;
+        this.optimizer = optimizer;
+        this.engine = engine;
+        this.resolver = new Resolver(new ErrorReporter() {
+            @Override
+            public void error(int line, String message) {
+                resolveErrors++;
+                reporter.error(line, message);
+            }
+            @Override
+            public void runtimeError(RuntimeError error) {
+                reporter.runtimeError(error);
+            }
+        });
+        this.directory = Paths.get("").toAbsolutePath();
+    }
+
+    // false while the buffered input is an unfinished statement
+    public boolean eval(String line) {
+        boolean force = line.isBlank();
+        pending.append(line).append('\n');
+        ErrorList errors = new ErrorList();
+        Parser parser = new Parser(new Scanner(pending.toString(), errors), errors);
+        List<Stmt> statements = new ArrayList<>();
+        for (Stmt stmt = parser.nextStatement(); stmt != null; stmt = parser.nextStatement()) {
+            statements.add(stmt);
+        }
+        if (!errors.isEmpty() && parser.endReached() && !force) return false;
+        pending.setLength(0);
+        if (!errors.isEmpty()) {
+            for (SulError error : errors.errors) reporter.error(error.line, error.message);
+            return true;
+        }
+        for (Stmt statement : statements) {
+            List<Stmt> single = new ArrayList<>(1);
+            single.add(statement);
+            int errorsBefore = resolveErrors;
+            resolver.resolve(single);
+            if (resolveErrors != errorsBefore) continue;
+            if (statement instanceof Stmt.ImportStmt) ModuleLoader.prefetch((Stmt.ImportStmt) statement, directory);
+            engine.accept(optimizer.run(single));
+        }
+        return true;
+    }
+    public boolean pending() {
+        return pending.length() > 0;
+    }
+}
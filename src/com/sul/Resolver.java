@@ -1,28 +1,75 @@
 package com.sul;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private static class Local {
+        final int slot;
+        boolean defined = false;
+        boolean captured = false;
+        // the Decl or FunctionDecl that declared it, null for parameters
+        Stmt declaration;
+        // plain slot accesses resolved before a closure captured it, they switch to the cell when it does
+        final List<Expr.Variable> reads = new ArrayList<>();
+        final List<Expr.Assigment> writes = new ArrayList<>();
+        Local(int slot) {
+            this.slot = slot;
+        }
+    }
+    // one per function and one per outermost block of top-level code, every scope inside it shares its slots
+    private static class Frame {
+        final Frame enclosing;
+        final Stack<Map<Symbol, Local>> scopes = new Stack<>();
+        // a scope hands its slots back when it ends, so sibling blocks reuse them
+        int nextSlot = 0;
+        int slotCount = 0;
+        // the Stmt.FunctionDecl.captures being built, an upvalue's index is its position
+        final List<Integer> captures = new ArrayList<>();
+        Frame(Frame enclosing) {
+            this.enclosing = enclosing;
+        }
+        Local find(Symbol name) {
+            for (int i = scopes.size() - 1; i >= 0; i--) {
+                Local local = scopes.get(i).get(name);
+                if (local != null) return local;
+            }
+            return null;
+        }
+    }
+    // null while resolving top-level code outside any block
+    private Frame frame = null;
     private FunctionType currentFunction = FunctionType.NONE;
+    private int loopDepth = 0;
+    private final ErrorReporter reporter;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver(ErrorReporter reporter) {
+        this.reporter = reporter;
     }
+
     @Override
     public Void visitBlock(Stmt.Block stmt) {
+        boolean owner = frame == null;
+        if (owner) frame = new Frame(null);
         beginScope();
         resolve(stmt.stmts);
         endScope();
+        if (owner) {
+            stmt.slotCount = frame.slotCount;
+            frame = null;
+        }
         return null;
     }
     @Override
     public Void visitDecl(Stmt.Decl stmt) {
-        declare(stmt.identifier);
+        Local local = declare(stmt.identifier);
+        if (local != null) {
+            stmt.slot = local.slot;
+            local.declaration = stmt;
+        }
         if (stmt.expr != null) {
             resolve(stmt.expr);
         }
@@ -31,48 +78,103 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
     @Override
     public Void visitVariable(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-                scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Sul.error(expr.name.position,
-                    "Can't read local variable in its own initializer.");
-        }
-
-        resolveLocal(expr, expr.name);
-        return null;
-    }
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+        if (frame != null) {
+            Local local = frame.scopes.peek().get(expr.name.symbol());
+            if (local != null && !local.defined) {
+                reporter.error(expr.name.position,
+                        "Can't read local variable in its own initializer.");
             }
         }
+        Local local = frame == null ? null : frame.find(expr.name.symbol());
+        if (local != null) {
+            expr.slot = local.slot;
+            expr.binding = local.captured ? Expr.Binding.CELL : Expr.Binding.LOCAL;
+            if (!local.captured) local.reads.add(expr);
+        } else {
+            expr.slot = upvalue(frame, expr.name.symbol());
+            expr.binding = expr.slot >= 0 ? Expr.Binding.UPVALUE : Expr.Binding.GLOBAL;
+        }
+        return null;
     }
     @Override
     public Void visitAssigment(Expr.Assigment expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Local local = frame == null ? null : frame.find(expr.name.symbol());
+        if (local != null) {
+            expr.slot = local.slot;
+            expr.binding = local.captured ? Expr.Binding.CELL : Expr.Binding.LOCAL;
+            if (!local.captured) local.writes.add(expr);
+        } else {
+            expr.slot = upvalue(frame, expr.name.symbol());
+            expr.binding = expr.slot >= 0 ? Expr.Binding.UPVALUE : Expr.Binding.GLOBAL;
+        }
         return null;
     }
+    // index of the upvalue through which the closure of target reaches name, -1 when name is a global
+    private int upvalue(Frame target, Symbol name) {
+        if (target == null || target.enclosing == null) return -1;
+        Local local = target.enclosing.find(name);
+        int capture;
+        if (local != null) {
+            capture(local);
+            capture = local.slot;
+        } else {
+            int index = upvalue(target.enclosing, name);
+            if (index < 0) return -1;
+            capture = -1 - index;
+        }
+        int index = target.captures.indexOf(capture);
+        if (index >= 0) return index;
+        target.captures.add(capture);
+        return target.captures.size() - 1;
+    }
+    private void capture(Local local) {
+        if (local.captured) return;
+        local.captured = true;
+        if (local.declaration instanceof Stmt.Decl) ((Stmt.Decl) local.declaration).captured = true;
+        if (local.declaration instanceof Stmt.FunctionDecl) ((Stmt.FunctionDecl) local.declaration).captured = true;
+        for (Expr.Variable read : local.reads) read.binding = Expr.Binding.CELL;
+        for (Expr.Assigment write : local.writes) write.binding = Expr.Binding.CELL;
+        local.reads.clear();
+        local.writes.clear();
+    }
     @Override
     public Void visitFunctionDecl(Stmt.FunctionDecl stmt) {
-        declare(stmt.name);
+        Local local = declare(stmt.name);
+        if (local != null) {
+            stmt.slot = local.slot;
+            local.declaration = stmt;
+        }
         define(stmt.name);
-        resolveFunction(stmt, FunctionType.FUNCTION);
+        // a deferred body is resolved on its own when it is first needed
+        if (!stmt.isLazy()) resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
     }
+    void resolveBody(Stmt.FunctionDecl function) {
+        resolveFunction(function, FunctionType.FUNCTION);
+    }
     private void resolveFunction(
             Stmt.FunctionDecl function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        int enclosingLoops = loopDepth;
         currentFunction = type;
+        loopDepth = 0;
+        frame = new Frame(frame);
         beginScope();
+        List<Local> parameters = new ArrayList<>(function.args.size());
         for (Token param : function.args) {
-            declare(param);
+            parameters.add(declare(param));
             define(param);
         }
         resolve(function.body);
         endScope();
+        function.slotCount = frame.slotCount;
+        function.captures = frame.captures.stream().mapToInt(Integer::intValue).toArray();
+        function.cellParams = parameters.stream().filter(local -> local.captured)
+                .mapToInt(local -> local.slot).toArray();
+        frame = frame.enclosing;
         currentFunction = enclosingFunction;
+        loopDepth = enclosingLoops;
     }
     @Override
     public Void visitExpression(Stmt.Expression stmt) {
@@ -94,10 +196,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(Stmt.ReturnStmt stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Sul.error(stmt.keyWord.position, "Can't return from top-level code.");
+            reporter.error(stmt.keyWord.position, "Can't return from top-level code.");
         }
         if (stmt.value != null) {
             resolve(stmt.value);
+            Expr value = stmt.value;
+            while (value instanceof Expr.Grouping) value = ((Expr.Grouping) value).expr;
+            stmt.tailCall = currentFunction != FunctionType.NONE && value instanceof Expr.CallExpr;
         }
 
         return null;
@@ -105,12 +210,43 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitWhileStmt(Stmt.WhileStmt stmt) {
         resolve(stmt.condition);
+        loopDepth++;
         resolve(stmt.body);
+        loopDepth--;
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.ForStmt stmt) {
+        boolean owner = frame == null;
+        if (owner) frame = new Frame(null);
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        if (stmt.increment != null) resolve(stmt.increment);
+        loopDepth++;
+        resolve(stmt.body);
+        loopDepth--;
+        endScope();
+        if (owner) {
+            stmt.slotCount = frame.slotCount;
+            frame = null;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.ImportStmt stmt) {
+        if (frame != null) reporter.error(stmt.keyWord.position, "Can only import at the top level.");
         return null;
     }
 
     @Override
     public Void visitLoopControlStmt(Stmt.LoopControlStmt loopControlStmt) {
+        if (loopDepth == 0) {
+            reporter.error(loopControlStmt.keyWord.position,
+                    "Can't use " + loopControlStmt.keyWord.lexeme() + " outside of a loop.");
+        }
         return null;
     }
 
@@ -131,6 +267,34 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
     @Override
+    public Void visitArrayLiteral(Expr.ArrayLiteral expr) {
+        for (Expr element : expr.elements) {
+            resolve(element);
+        }
+        return null;
+    }
+    @Override
+    public Void visitMapLiteral(Expr.MapLiteral expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            resolve(expr.keys.get(i));
+            resolve(expr.values.get(i));
+        }
+        return null;
+    }
+    @Override
+    public Void visitIndex(Expr.Index expr) {
+        resolve(expr.array);
+        resolve(expr.index);
+        return null;
+    }
+    @Override
+    public Void visitIndexAssigment(Expr.IndexAssigment expr) {
+        resolve(expr.array);
+        resolve(expr.index);
+        resolve(expr.value);
+        return null;
+    }
+    @Override
     public Void visitGrouping(Expr.Grouping expr) {
         resolve(expr.expr);
         return null;
@@ -156,25 +320,31 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         resolve(expr.expression);
         return null;
     }
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    // null for a global
+    private Local declare(Token name) {
+        if (frame == null) return null;
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
-            Sul.error(name.position,
+        Map<Symbol, Local> scope = frame.scopes.peek();
+        Local local = scope.get(name.symbol());
+        if (local != null) {
+            reporter.error(name.position,
                     "Already a variable with this name in this scope.");
+            return local;
         }
-        scope.put(name.lexeme, false);
+        local = new Local(frame.nextSlot++);
+        frame.slotCount = Math.max(frame.slotCount, frame.nextSlot);
+        scope.put(name.symbol(), local);
+        return local;
     }
     private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        if (frame == null) return;
+        frame.scopes.peek().get(name.symbol()).defined = true;
     }
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        frame.scopes.push(new HashMap<Symbol, Local>());
     }
     private void endScope() {
-        scopes.pop();
+        frame.nextSlot -= frame.scopes.pop().size();
     }
     void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
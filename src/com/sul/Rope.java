@@ -0,0 +1,77 @@
+package com.sul;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*
+ * Sul string built by +, the pieces are only copied into one String when something needs the characters:
+ * printing, comparing or indexing. A loop appending to a string then costs one node per step instead of a
+ * copy of everything built so far. Sul strings are String or Rope, code that needs either checks for
+ * CharSequence.
+ */
+public final class Rope implements CharSequence {
+    // shorter results are copied right away, a node and a later flatten would cost more than the copy
+    private static final int FLAT_LIMIT = 64;
+    private final int length;
+    private CharSequence left;
+    private CharSequence right;
+    private String flat;
+
+    private Rope(CharSequence left, CharSequence right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+    public static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left.length() == 0) return right;
+        if (right.length() == 0) return left;
+        int length = left.length() + right.length();
+        if (length < 0) throw new OutOfMemoryError("string too long");
+        if (length <= FLAT_LIMIT) return left.toString().concat(right.toString());
+        return new Rope(left, right, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+    // appending in a loop nests ropes as deep as the loop ran, so the pieces are walked without recursion
+    @Override
+    public String toString() {
+        if (flat != null) return flat;
+        StringBuilder builder = new StringBuilder(length);
+        Deque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            CharSequence piece = pending.pop();
+            if (piece instanceof Rope && ((Rope) piece).flat == null) {
+                Rope rope = (Rope) piece;
+                pending.push(rope.right);
+                pending.push(rope.left);
+            } else {
+                builder.append(piece.toString());
+            }
+        }
+        flat = builder.toString();
+        left = null;
+        right = null;
+        return flat;
+    }
+    // equal to any Sul string with the same characters, Interpreter.isEqual compares Strings with Ropes
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CharSequence && toString().equals(other.toString());
+    }
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -1,10 +1,14 @@
 package com.sul;
 
 public class RuntimeError extends RuntimeException {
-    final Token token;
+    public final Token token;
 
-    RuntimeError(Token token, String message) {
+    public RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
     }
+    // thrown by natives, which do not know where they were called from, the engine adds the call's token
+    public RuntimeError(String message) {
+        this(null, message);
+    }
 }
@@ -1,32 +1,80 @@
 package com.sul;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 
+// hands out tokens on demand, reading the input a chunk at a time so a script never has to fit in memory
 public class Scanner {
-    final String source;
+    private static final int CHUNK_SIZE = 1 << 16;
+    // the chunk being scanned, tokens keep pointing into older chunks after a refill
+    private String source;
+    private Reader reader;
+    private char[] buffer;
     private int start = 0;
     private int current;
     private int line = 1;
     boolean finished;
-    private List<Token> tokens = new ArrayList<>();
+    private final ArrayDeque<Token> tokens = new ArrayDeque<>();
+    private Token finish;
+    // one Symbol per distinct identifier of the source, open addressing keyed by the source range
+    private Symbol[] names = new Symbol[256];
+    private int nameCount = 0;
+    private final ErrorReporter reporter;
 
-    Scanner(String source) {
-        this.source = source.trim();
+    Scanner(String source, ErrorReporter reporter) {
+        this.source = source;
+        this.reporter = reporter;
         this.current = 0;
         this.finished = false;
-        this.tokens = scan();
+    }
+    Scanner(Reader reader, ErrorReporter reporter) {
+        this("", reporter);
+        this.reader = reader;
+        this.buffer = new char[CHUNK_SIZE];
     }
 
-    private List<Token> scan() {
-        while (!finished) {
-            if (current >= source.length()) break;
+    // FINISH once the input is exhausted, and on every call after that
+    Token nextToken() {
+        while (tokens.isEmpty()) {
+            if (finished) return finish;
+            if (!more()) {
+                finished = true;
+                finish = new Token(TokenType.FINISH, line, "", null);
+                return finish;
+            }
             start = current;
             scanToken();
-
         }
-        addToken(TokenType.FINISH, null);
-        return tokens;
+        return tokens.poll();
+    }
+    // whether there is a character at current, reading the next chunk when the buffered one is used up
+    private boolean more() {
+        while (current >= source.length()) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+    private boolean fill() {
+        if (reader == null) return false;
+        int read;
+        try {
+            read = reader.read(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (read < 0) {
+            reader = null;
+            return false;
+        }
+        // the token being scanned moves to the front of the new chunk
+        StringBuilder chunk = new StringBuilder(source.length() - start + read);
+        chunk.append(source, start, source.length()).append(buffer, 0, read);
+        source = chunk.toString();
+        current -= start;
+        start = 0;
+        return true;
     }
 
     private void scanToken() {
@@ -65,6 +113,12 @@ public class Scanner {
             case '}':
                 addToken(TokenType.RIGHT_BRACE);
                 break;
+            case '[':
+                addToken(TokenType.LEFT_BRACKET);
+                break;
+            case ']':
+                addToken(TokenType.RIGHT_BRACKET);
+                break;
             case '.':
                 addToken(TokenType.DOT);
                 break;
@@ -95,22 +149,18 @@ public class Scanner {
                 generateSTRINGToken();
                 break;
             default:
-                Sul.error(line, "unrecognized token: " + next);
+                reporter.error(line, "unrecognized token: " + next);
 
         }
     }
 
     private char getNext() {
-        if (current >= source.length()+1) return '\0';
+        if (!more()) return '\0';
         return source.charAt(current++);
     }
 
     private void addToken(TokenType type, Object value) {
-        String lexeme = source.substring(start, current);
-        if (type == TokenType.EOF) type = checkForKeyword(lexeme);
-        if (lexeme.isBlank()) return;
-        Token token = new Token(type, line, lexeme, value);
-        tokens.add(token);
+        tokens.add(new Token(type, line, source, start, current - start, value));
     }
 
     private void addToken(TokenType type) {
@@ -119,21 +169,17 @@ public class Scanner {
     private void generateSTRINGToken(){
         while(!checkNextValue('"')) {
             getNext();
-            if(current >= source.length()) {
-                Sul.error(line, "expected: "+'"');
-                System.exit(1);
+            if(!more()) {
+                reporter.error(line, "expected: "+'"');
+                return;
             }
         }
         Object value = source.substring(start+1, current-1);
         addToken(TokenType.STRING, value);
     }
 
-    public List<Token> getTokens() {
-        return tokens;
-    }
-
     private boolean checkNextValue(char next) {
-        if (current == source.length()) return false;
+        if (!more()) return false;
         boolean val = source.charAt(current) == next;
         if (val) {
             current++;
@@ -141,29 +187,8 @@ public class Scanner {
         return val;
     }
 
-    private TokenType checkForKeyword(String candidate) {
-        return switch (candidate) {
-            case "if" -> TokenType.IF;
-            case "else" -> TokenType.ELSE;
-            case "and" -> TokenType.AND;
-            case "or" -> TokenType.OR;
-            case "false" -> TokenType.FALSE;
-            case "true" -> TokenType.TRUE;
-            case "nihil" -> TokenType.NULL;
-            case "print" -> TokenType.PRINT;
-            case "return" -> TokenType.RETURN;
-            case "while" -> TokenType.WHILE;
-            case "for" -> TokenType.FOR;
-            case "var" -> TokenType.VAR;
-            case "fun" -> TokenType.FUN;
-            case "break" -> TokenType.BREAK;
-            case "continue" -> TokenType.CONTINUE;
-            default -> TokenType.EOF;
-        };
-    }
-
     private char peek() {
-        if (current >= source.length()) return '\0';
+        if (!more()) return '\0';
         return source.charAt(current);
     }
     private void generateEOFToken() {
@@ -174,27 +199,56 @@ public class Scanner {
             next = getNext();
         }
         if (isLetter(next,false)) isNumber = false;
-        String value = source.substring(start, current);
-        Object valueInt = value;
         if(!isNumber) {
-            char firstChar = value.charAt(0);
+            char firstChar = source.charAt(start);
             if(!isLetter(firstChar, false)) {
-                Sul.error(line, "unrecognized string: " + value);
-                System.exit(1);
+                reporter.error(line, "unrecognized string: " + source.substring(start, current));
+                return;
             }
+            Symbol name = intern(start, current);
+            tokens.add(new Token(name.keyword, line, name));
         } else {
-            int dotCount = value.length() - value.replace(".", "").length();
-            if(value.endsWith(".") || dotCount>1) {
-                Sul.error(line, "unrecognized number: " + value);
-                System.exit(1);
+            int dotCount = 0;
+            for (int i = start; i < current; i++) {
+                if (source.charAt(i) == '.') dotCount++;
+            }
+            if(source.charAt(current - 1) == '.' || dotCount>1) {
+                reporter.error(line, "unrecognized number: " + source.substring(start, current));
+                return;
             }
-            valueInt = getValue(value);
+            addToken(TokenType.NUMBER, getValue(start, current));
         }
-        if(valueInt instanceof Double)
-            addToken(TokenType.NUMBER, valueInt);
-        else addToken(TokenType.EOF, valueInt);
 
     }
+    private Symbol intern(int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = names.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            Symbol name = names[index];
+            if (name == null) {
+                name = Symbol.of(source.substring(from, to));
+                names[index] = name;
+                if (++nameCount * 2 > names.length) growNames();
+                return name;
+            }
+            if (name.name.length() == to - from && source.startsWith(name.name, from)) return name;
+        }
+    }
+    // String.hashCode uses the same hash as intern, so the names can be reinserted directly
+    private void growNames() {
+        Symbol[] old = names;
+        names = new Symbol[old.length * 2];
+        int mask = names.length - 1;
+        for (Symbol name : old) {
+            if (name == null) continue;
+            int index = name.name.hashCode() & mask;
+            while (names[index] != null) index = (index + 1) & mask;
+            names[index] = name;
+        }
+    }
     private boolean isLetter(char c, boolean accept_number) {
         if (accept_number) {
             return (('A' <= c && c <= 'Z') || (c >= 'a' && c <= 'z') ||
@@ -203,7 +257,27 @@ public class Scanner {
         return (('A' <= c && c <= 'Z') || (c >= 'a' && c <= 'z'));
     }
 
-    private Object getValue(String s) {
-        return Double.parseDouble(s);
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // up to 15 digits the digits and the power of ten are exact doubles, so one division rounds correctly
+    private Object getValue(int from, int to) {
+        long digits = 0;
+        int digitCount = 0;
+        int fraction = -1;
+        for (int i = from; i < to; i++) {
+            char c = source.charAt(i);
+            if (c == '.') {
+                fraction = 0;
+                continue;
+            }
+            digits = digits * 10 + (c - '0');
+            digitCount++;
+            if (fraction >= 0) fraction++;
+        }
+        if (digitCount > 15) return Double.parseDouble(source.substring(from, to));
+        if (fraction <= 0) return (double) digits;
+        return digits / POWERS_OF_TEN[fraction];
     }
 }
@@ -1,108 +1,194 @@
 package com.sul;
 
+import com.sul.jit.CompiledBody;
+import com.sul.opt.Pass;
+
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
 
 public abstract class Stmt {
-	abstract <R> R accept(Visitor<R> v);
-	interface Visitor<R> {
+	public abstract <R> R accept(Visitor<R> v);
+	public interface Visitor<R> {
 		R visitExpression (Expression expression);
 		R visitPrint (Print print);
 		R visitDecl(Decl decl);
 		R visitBlock(Block block);
 		R visitIfStmt(IfStmt ifStmt);
 		R visitWhileStmt(WhileStmt whileStmt);
+		R visitForStmt(ForStmt forStmt);
 		R visitLoopControlStmt(LoopControlStmt loopControlStmt);
+		R visitImportStmt(ImportStmt importStmt);
 		R visitFunctionDecl(FunctionDecl functionDecl);
 		R visitReturnStmt(ReturnStmt returnStmt);
 	}
 	public static class Expression extends Stmt {
-		Expr expr;
+		public Expr expr;
 		Expression(Expr expr) {
             this.expr = expr;
 		}
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitExpression(this);
 		}
 	}
 	public static class Print extends Stmt {
-		Expr expr;
+		public Expr expr;
 		Print(Expr expr) {
             this.expr = expr;
 		}
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitPrint(this);
 		}
 	}
 	public static class Decl extends Stmt {
-		Token identifier;
-		Expr expr;
+		public Token identifier;
+		public Expr expr;
+		// slot in the enclosing frame, -1 for globals
+		public int slot = -1;
+		// a closure captured it, so the slot holds a Cell made fresh each time the declaration runs
+		public boolean captured;
 		Decl(Token identifier, Expr expr) {
 			this.identifier = identifier;
 			this.expr = expr;
 		}
-		<R> R accept(Visitor<R> visitor) {return visitor.visitDecl(this);}
+		public <R> R accept(Visitor<R> visitor) {return visitor.visitDecl(this);}
 	}
 	public static class Block extends Stmt {
-		List<Stmt> stmts;
-		Block(List<Stmt> stmts) {
+		public List<Stmt> stmts;
+		// slots the outermost block of top-level code needs in the script's frame, -1 for every other block
+		public int slotCount = -1;
+		public Block(List<Stmt> stmts) {
 			this.stmts = stmts;
 		}
-		<R> R accept(Visitor<R> visitor) {return visitor.visitBlock(this);}
+		public <R> R accept(Visitor<R> visitor) {return visitor.visitBlock(this);}
 	}
 	public static class IfStmt extends Stmt {
-		Expr condition;
-		Stmt thenStmt;
-		Stmt elseStmt;
+		public Expr condition;
+		public Stmt thenStmt;
+		public Stmt elseStmt;
 		IfStmt(Expr condition, Stmt thenStmt, Stmt elseStmt) {
 			this.condition = condition;
 			this.thenStmt = thenStmt;
 			this.elseStmt = elseStmt;
 		}
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitIfStmt(this);
 		}
 	}
 	public static class WhileStmt extends Stmt {
-		Expr condition;
-		Stmt body;
+		public Expr condition;
+		public Stmt body;
 		WhileStmt(Expr condition, Stmt body) {
 			this.condition = condition;
 			this.body = body;
 		}
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitWhileStmt(this);
 		}
 	}
+	public static class ForStmt extends Stmt {
+		public Stmt initializer;
+		public Expr condition;
+		public Expr increment;
+		public Stmt body;
+		// slots the loop needs in the script's frame when it is top-level code outside any block, -1 otherwise
+		public int slotCount = -1;
+		ForStmt(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+			this.initializer = initializer;
+			this.condition = condition;
+			this.increment = increment;
+			this.body = body;
+		}
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.visitForStmt(this);
+		}
+	}
+	public static class ImportStmt extends Stmt {
+		public Token keyWord;
+		public String file;
+		// started by ModuleLoader.prefetch as soon as the statement is parsed
+		public ForkJoinTask<ModuleLoader.Module> module;
+		ImportStmt(Token keyWord, String file) {
+			this.keyWord = keyWord;
+			this.file = file;
+		}
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.visitImportStmt(this);
+		}
+	}
 	public static class LoopControlStmt extends Stmt {
-		Token keyWord;
+		public Token keyWord;
 		LoopControlStmt(Token keyWord) {
 			this.keyWord = keyWord;
 		}
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitLoopControlStmt(this);
 		}
 	}
 	public static class FunctionDecl extends Stmt {
-		Token name;
-		List<Token> args;
-		List<Stmt> body;
+		private static final int[] NONE = new int[0];
+		public Token name;
+		public List<Token> args;
+		// null while the body is deferred, read it through body()
+		public List<Stmt> body;
+		LazyBody lazy;
+		public int slot = -1;
+		// parameters take the first slots of the frame, known once the body is resolved
+		public int slotCount;
+		public boolean captured;
+		// where each upvalue comes from when the closure is made: a slot of the enclosing frame,
+		// or -1 - index for an upvalue of the enclosing closure
+		public int[] captures = NONE;
+		// parameters a nested closure captured, boxed into cells on entry
+		public int[] cellParams = NONE;
+		// JIT state lives with the tree, which outlives the interpreter and the closures of one run;
+		// a module tree is shared by isolates, a race at worst compiles the body twice
+		int calls;
+		CompiledBody compiled;
 		FunctionDecl(Token name, List<Token> args, List<Stmt> body) {
 			this.name = name;
 			this.args = args;
 			this.body = body;
 		}
-		<R> R accept(Visitor<R> visitor) { return visitor.visitFunctionDecl(this);}
+		FunctionDecl(Token name, List<Token> args, LazyBody lazy) {
+			this.name = name;
+			this.args = args;
+			this.lazy = lazy;
+		}
+		public boolean isLazy() {
+			return lazy != null;
+		}
+		// parses, resolves and optimizes a deferred body, a syntax error in it is a runtime error of the caller
+		public List<Stmt> body() {
+			if (lazy != null) {
+				body = lazy.compile(this);
+				lazy = null;
+			}
+			return body;
+		}
+		// optimizer passes reach a deferred body only once it is parsed
+		public void defer(Pass pass) {
+			lazy.passes.add(pass);
+		}
+		public <R> R accept(Visitor<R> visitor) { return visitor.visitFunctionDecl(this);}
 	}
 	public static class ReturnStmt extends Stmt {
-		Token keyWord;
-		Expr value;
+		public Token keyWord;
+		public Expr value;
+		// set by the Resolver when the value is a call whose result is returned as is
+		public boolean tailCall;
 		ReturnStmt(Token keyWord, Expr value) {
 			this.keyWord = keyWord;
 			this.value = value;
 		}
-		<R> R accept(Visitor<R> visitor) {return visitor.visitReturnStmt(this);}
+		public Expr.CallExpr tailCallExpr() {
+			if (!tailCall) return null;
+			Expr expr = value;
+			while (expr instanceof Expr.Grouping) expr = ((Expr.Grouping) expr).expr;
+			return expr instanceof Expr.CallExpr ? (Expr.CallExpr) expr : null;
+		}
+		public <R> R accept(Visitor<R> visitor) {return visitor.visitReturnStmt(this);}
 	}
 
 
@@ -1,70 +1,177 @@
 package com.sul;
 
+import com.sul.opt.PassManager;
+import com.sul.vm.Compiler;
+import com.sul.vm.VM;
+
 import java.io.*;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
+// the command line, embedders use SulEngine instead
 public class Sul {
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
-    private static final Interpreter interpreter = new Interpreter();
+    // prints errors the way the command line always has, and remembers enough to pick the exit code
+    private static final class Console implements ErrorReporter {
+        int errorCount = 0;
+        boolean hadRuntimeError = false;
+
+        // buffered script output goes out first so it stays ahead of the error, as it was printed
+        @Override
+        public void error(int line, String message) {
+            output.flush();
+            System.out.println("error in: " + line + ": " + message);
+            errorCount++;
+        }
+        @Override
+        public void runtimeError(RuntimeError error) {
+            output.flush();
+            System.out.println("error in runtime: " + error.getMessage());
+            System.out.println("In line: " + error.token.position);
+            hadRuntimeError = true;
+        }
+    }
+    // a terminal sees every line as it is printed, a pipe or a file gets them in large writes
+    private static final OutputSink output = new OutputSink(System.out, System.out.charset(),
+            System.console() != null ? 0 : OutputSink.BUFFER);
+    private static final Console console = new Console();
+    private static Interpreter interpreter;
+    // set by --vm, the tree-walker stays the reference engine
+    private static VM vm = null;
+    // runs between the Resolver and the engine, --no-opt skips it
+    private static PassManager optimizer = PassManager.defaults();
+    // set by --profile, only for scripts
+    private static boolean profile = false;
+    private static Profiler profiler = null;
     public static void main(String[] args) throws IOException {
-        if(args.length > 1) {
-            System.out.println("Usage: java Sul path");
+        List<String> paths = new ArrayList<>();
+        boolean useVm = false;
+        boolean deep = false;
+        for (String arg : args) {
+            if (arg.equals("--vm")) useVm = true;
+            else if (arg.equals("--no-opt")) optimizer = new PassManager();
+            else if (arg.equals("--deep")) deep = true;
+            else if (arg.equals("--profile")) profile = true;
+            else paths.add(arg);
+        }
+        interpreter = new Interpreter(console, optimizer, output);
+        if (useVm) vm = new VM(optimizer, output);
+        if (deep) interpreter.stackSegment = Integer.getInteger("sul.stack.segment", 4096);
+        if(paths.size() > 1 || (profile && paths.isEmpty())) {
+            System.out.println("Usage: java Sul [--vm] [--no-opt] [--deep] [--profile] path");
             System.exit(1);
-        } else if(args.length == 0) {
-            runCommandLine();
-        } else {
-            runScript(args[0]);
+        }
+        // also reached when a JVM error escapes the script, System.exit only comes after a flush
+        try {
+            if (paths.isEmpty()) runCommandLine();
+            else runScript(paths.get(0));
+        } finally {
+            output.flush();
         }
     }
     private static void runScript(String path) throws IOException {
-        byte []bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes));
+        if (profile) {
+            profiler = new Profiler(Paths.get(System.getProperty("sul.profile.out", path + ".collapsed")),
+                    Long.getLong("sul.profile.interval", 1000));
+            interpreter.profiler = profiler;
+            if (vm != null) vm.setProfiler(profiler);
+            profiler.start();
+        }
+        Path source = Paths.get(path);
+        Path directory = source.toAbsolutePath().getParent();
+        if (AstCache.ENABLED && Files.size(source) <= AstCache.MAX_SOURCE) {
+            byte[] bytes = Files.readAllBytes(source);
+            byte[] hash = AstCache.hash(bytes);
+            List<Stmt> cached = AstCache.load(source, hash);
+            if (cached != null) {
+                runResolved(cached, directory);
+            } else {
+                run(new Scanner(new String(bytes, Charset.defaultCharset()), console), directory,
+                        new AstCache.Writer(source, hash));
+            }
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(source, Charset.defaultCharset())) {
+            run(new Scanner(reader, console), directory, null);
+        }
     }
     private static void runCommandLine() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader buffer = new BufferedReader(input);
+        // errors are reported and the session goes on
+        ReplSession session = new ReplSession(console, optimizer, Sul::execute);
         for(;;){
             String line = buffer.readLine();
             if(line == null) break;
-            run(line);
-            if(hadError) {
-                hadError = false;
+            session.eval(line);
+            output.flush();
+            console.hadRuntimeError = false;
+        }
+        if (session.pending()) session.eval("");
+    }
+    // each top-level statement runs as soon as it is parsed, so only one statement's tree is alive at a time
+    // imports are relative to directory, cache gets every resolved statement when it is not null
+    private static void run(Scanner scanner, Path directory, AstCache.Writer cache) {
+        Parser parser = new Parser(scanner, console);
+        Resolver resolver = new Resolver(console);
+        for (;;) {
+            int errors = console.errorCount;
+            Stmt statement = parser.nextStatement();
+            // statements before the error already ran, so their profile is still written
+            if(console.errorCount != errors) {
+                finish();
                 System.exit(2);
             }
+            if (statement == null) {
+                if (cache != null) cache.finish();
+                break;
+            }
+            List<Stmt> parsedStatements = new ArrayList<>(1);
+            parsedStatements.add(statement);
+            resolver.resolve(parsedStatements);
+            if (console.errorCount != errors) {
+                finish();
+                return;
+            }
+            if (cache != null) cache.add(statement);
+            if (!execute(statement, directory)) break;
         }
+        finish();
     }
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens;
-        tokens = scanner.getTokens();
-//        for(Token token : tokens) {
-//            System.out.println(token.type + " " + token.lexeme);
-//        }
-        Parser parser = new Parser(tokens);
-        List<Stmt> parsedStatements = parser.parse();
-        if(hadError) System.exit(2);
-        Resolver resolver = new Resolver(interpreter);
-        resolver.resolve(parsedStatements);
-        if (hadError) return;
-        interpreter.interpret(parsedStatements);
-        if(hadRuntimeError) System.exit(3);
-
-
-
-
+    // statements that come resolved from the cache skip the front end
+    private static void runResolved(List<Stmt> statements, Path directory) {
+        for (Stmt statement : statements) {
+            if (!execute(statement, directory)) break;
+        }
+        finish();
+    }
+    private static boolean execute(Stmt statement, Path directory) {
+        if (statement instanceof Stmt.ImportStmt) ModuleLoader.prefetch((Stmt.ImportStmt) statement, directory);
+        List<Stmt> statements = new ArrayList<>(1);
+        statements.add(statement);
+        execute(optimizer.run(statements));
+        return !console.hadRuntimeError;
     }
-     static void error(int line, String message) {
-        System.out.println("error in: " + line + ": " + message);
-        hadError = true;
-        //TODO
+    private static void finish() {
+        output.flush();
+        if (profiler != null) profiler.finish(System.err);
+        if(console.hadRuntimeError) System.exit(3);
     }
-    static void RuntimeError(RuntimeError error) {
-        System.out.println("error in runtime: " + error.getMessage());
-        System.out.println("In line: " + error.token.position);
-        hadRuntimeError = true;
+    private static void execute(List<Stmt> parsedStatements) {
+        if (vm != null) {
+            try {
+                vm.interpret(parsedStatements);
+            } catch (Compiler.CompileError error) {
+                console.error(error.line, error.getMessage());
+            } catch (RuntimeError error) {
+                console.runtimeError(error);
+            }
+        } else {
+            interpreter.interpret(parsedStatements);
+        }
     }
 }
 
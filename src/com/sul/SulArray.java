@@ -0,0 +1,117 @@
+package com.sul;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ * Sul array. Elements stay unboxed in a double[] while every one of them is a number, the first store of
+ * anything else moves them to an Object[] for good. Engines check indexes with slot() so they can report
+ * the error at the right line.
+ */
+public final class SulArray {
+    private static final double[] NO_NUMBERS = new double[0];
+    // null once an element is not a number
+    private double[] numbers;
+    // null while numbers holds the elements
+    private Object[] values;
+    private int size;
+
+    private SulArray(double[] numbers, Object[] values, int size) {
+        this.numbers = numbers;
+        this.values = values;
+        this.size = size;
+    }
+    public SulArray() {
+        this(NO_NUMBERS, null, 0);
+    }
+    // copies count elements starting at from, picking the storage that fits them
+    public static SulArray of(Object[] elements, int from, int count) {
+        double[] numbers = new double[count];
+        for (int i = 0; i < count; i++) {
+            Object element = elements[from + i];
+            if (!(element instanceof Double)) {
+                return new SulArray(null, Arrays.copyOfRange(elements, from, from + count), count);
+            }
+            numbers[i] = (Double) element;
+        }
+        return new SulArray(numbers, null, count);
+    }
+
+    public int size() {
+        return size;
+    }
+    // the element index for a Sul index, -1 when it is not a whole number inside the array
+    public int slot(double index) {
+        int slot = (int) index;
+        return slot == index && slot >= 0 && slot < size ? slot : -1;
+    }
+    public boolean holdsNumbers() {
+        return numbers != null;
+    }
+    // only while holdsNumbers()
+    public double number(int slot) {
+        return numbers[slot];
+    }
+    public Object get(int slot) {
+        return numbers != null ? (Object) numbers[slot] : values[slot];
+    }
+    public void set(int slot, Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[slot] = (Double) value;
+                return;
+            }
+            generalize();
+        }
+        values[slot] = value;
+    }
+    public void setNumber(int slot, double value) {
+        if (numbers != null) numbers[slot] = value;
+        else values[slot] = value;
+    }
+    public void push(Object value) {
+        if (numbers != null && value instanceof Double) {
+            if (size == numbers.length) numbers = Arrays.copyOf(numbers, Math.max(8, size * 2));
+            numbers[size++] = (Double) value;
+            return;
+        }
+        if (numbers != null) generalize();
+        if (size == values.length) values = Arrays.copyOf(values, Math.max(8, size * 2));
+        values[size++] = value;
+    }
+    private void generalize() {
+        values = new Object[Math.max(numbers.length, size)];
+        for (int i = 0; i < size; i++) {
+            values[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        append(text, this, new IdentityHashMap<>());
+        return text.toString();
+    }
+    // arrays and maps print their elements through here, one that contains itself prints as [...] or {...}
+    // the second time around
+    static void append(StringBuilder text, Object value, Map<Object, Boolean> open) {
+        if (value instanceof SulArray) ((SulArray) value).append(text, open);
+        else if (value instanceof SulMap) ((SulMap) value).append(text, open);
+        else text.append(Interpreter.makeValidString(value));
+    }
+    private void append(StringBuilder text, Map<Object, Boolean> open) {
+        if (open.put(this, Boolean.TRUE) != null) {
+            text.append("[...]");
+            return;
+        }
+        text.append('[');
+        for (int i = 0; i < size; i++) {
+            if (i > 0) text.append(", ");
+            append(text, get(i), open);
+        }
+        text.append(']');
+        open.remove(this);
+    }
+}
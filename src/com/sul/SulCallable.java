@@ -1,8 +1,25 @@
 package com.sul;
 
+import java.util.Arrays;
 import java.util.List;
 
-interface SulCallable {
+public interface SulCallable {
     Object call(Interpreter interpreter, List<Object> arguments);
     int arity();
+    // fixed-arity entry points, callers use the one matching arity() so no argument list has to be built
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, List.of());
+    }
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Arrays.asList(a));
+    }
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return call(interpreter, Arrays.asList(a, b, c, d));
+    }
 }
@@ -0,0 +1,130 @@
+package com.sul;
+
+import com.sul.opt.PassManager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Embedding entry point. compile() turns a script into an immutable SulProgram once, run() and submit()
+ * execute it in one of a fixed number of isolates. An isolate runs one program at a time with globals and
+ * frames of its own, so programs never see each other's state and the number of isolates bounds how many
+ * run at once. Errors come back in the SulProgram or SulResult, nothing is printed and the JVM never exits.
+ * A NativeRegistry passed in decides which Java methods scripts can call, the built-in natives otherwise.
+ */
+public final class SulEngine implements AutoCloseable {
+    private final PassManager optimizer = PassManager.defaults();
+    private final BlockingQueue<Isolate> isolates;
+    private final Executor executor;
+    // only an executor the engine created is shut down by close()
+    private final ExecutorService ownExecutor;
+    // copied from the registry, registering more later does not change a running engine
+    private final Map<String, SulCallable> natives;
+
+    // one virtual thread per submitted run
+    public SulEngine(int isolates) {
+        this(isolates, NativeRegistry.builtins());
+    }
+    public SulEngine(int isolates, NativeRegistry natives) {
+        this(isolates, Executors.newVirtualThreadPerTaskExecutor(), true, natives);
+    }
+    public SulEngine(int isolates, Executor executor) {
+        this(isolates, executor, NativeRegistry.builtins());
+    }
+    public SulEngine(int isolates, Executor executor, NativeRegistry natives) {
+        this(isolates, executor, false, natives);
+    }
+    private SulEngine(int isolates, Executor executor, boolean own, NativeRegistry natives) {
+        if (isolates < 1) throw new IllegalArgumentException("isolates must be at least 1");
+        this.natives = natives.natives();
+        this.isolates = new ArrayBlockingQueue<>(isolates);
+        for (int i = 0; i < isolates; i++) this.isolates.add(new Isolate());
+        this.executor = executor;
+        this.ownExecutor = own ? (ExecutorService) executor : null;
+    }
+
+    // imports are resolved against the working directory
+    public SulProgram compile(String source) {
+        return compile(source, Paths.get("").toAbsolutePath());
+    }
+    public SulProgram compile(String source, Path directory) {
+        ErrorList errors = new ErrorList();
+        List<Stmt> statements = new Parser(new Scanner(source, errors), errors).parse();
+        if (statements != null && errors.isEmpty()) new Resolver(errors).resolve(statements);
+        if (statements == null || !errors.isEmpty()) return new SulProgram(null, directory, errors.errors);
+        // imported files start loading before the first run needs them
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.ImportStmt) ModuleLoader.prefetch((Stmt.ImportStmt) stmt, directory);
+        }
+        statements = optimizer.run(statements);
+        // a program is compiled once for many runs, so deferred bodies are parsed now while errors can be returned
+        for (Stmt stmt : statements) {
+            if (!(stmt instanceof Stmt.FunctionDecl)) continue;
+            try {
+                ((Stmt.FunctionDecl) stmt).body();
+            } catch (RuntimeError error) {
+                errors.error(error.token.position, error.getMessage());
+            }
+        }
+        if (!errors.isEmpty()) return new SulProgram(null, directory, errors.errors);
+        return new SulProgram(AstCache.serialize(statements), directory, errors.errors);
+    }
+
+    // runs on the calling thread, waiting for a free isolate
+    public SulResult run(SulProgram program) throws InterruptedException {
+        if (!program.ok()) return new SulResult("", program.errors());
+        Isolate isolate = isolates.take();
+        try {
+            return isolate.run(program);
+        } finally {
+            isolates.add(isolate);
+        }
+    }
+    public CompletableFuture<SulResult> submit(SulProgram program) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return run(program);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public void close() {
+        if (ownExecutor != null) ownExecutor.close();
+    }
+
+    private final class Isolate {
+        // trees already read for this isolate, they keep what earlier runs taught their nodes
+        private final Map<SulProgram, List<Stmt>> trees = new WeakHashMap<>();
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final OutputSink out = new OutputSink(output, StandardCharsets.UTF_8, OutputSink.BUFFER);
+
+        SulResult run(SulProgram program) {
+            List<Stmt> statements = trees.computeIfAbsent(program, SulProgram::statements);
+            ErrorList errors = new ErrorList();
+            output.reset();
+            // a fresh interpreter per run, so no global outlives the run that declared it
+            try {
+                new Interpreter(errors, optimizer, out, natives).interpret(statements);
+            } finally {
+                out.flush();
+            }
+            return new SulResult(output.toString(StandardCharsets.UTF_8), errors.errors);
+        }
+    }
+}
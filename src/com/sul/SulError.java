@@ -0,0 +1,21 @@
+package com.sul;
+
+// a problem in a script, handed back to embedders as a value
+public final class SulError {
+    public enum Kind {
+        SYNTAX, RUNTIME
+    }
+    public final Kind kind;
+    public final int line;
+    public final String message;
+
+    SulError(Kind kind, int line, String message) {
+        this.kind = kind;
+        this.line = line;
+        this.message = message;
+    }
+    @Override
+    public String toString() {
+        return (kind == Kind.SYNTAX ? "error in: " : "error in runtime: ") + line + ": " + message;
+    }
+}
@@ -1,37 +1,150 @@
 package com.sul;
 
+import com.sul.jit.CompiledBody;
+import com.sul.jit.JitCompiler;
+
 import java.util.List;
 
 public class SulFunction implements SulCallable{
-    private final Env closure;
+    // calls before a top-level function is handed to the JIT, 0 turns the JIT off
+    private static final int JIT_THRESHOLD = Integer.getInteger("sul.jit.threshold", 1000);
+    private final Cell[] upvalues;
     private final Stmt.FunctionDecl declaration;
-    SulFunction(Stmt.FunctionDecl declaration, Env closure) {
+    // where this run keeps the function, looked up when its declaration has compiled code
+    private int globalSlot = -1;
+    private String label = null;
+    SulFunction(Stmt.FunctionDecl declaration, Cell[] upvalues) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
+    }
+    // arguments are bound straight into the slots of this frame
+    Env frame() {
+        // a deferred body only knows its slot count once it is parsed
+        if (declaration.isLazy()) declaration.body();
+        return new Env(upvalues, declaration.slotCount);
     }
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
-        Env environment = new Env(closure);
+        Env environment = frame();
         for (int i = 0; i < declaration.args.size(); i++) {
-            environment.put(declaration.args.get(i),
-                    arguments.get(i));
+            environment.slots[i] = arguments.get(i);
+        }
+        return run(interpreter, environment);
+    }
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(interpreter, frame());
+    }
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Env environment = frame();
+        environment.slots[0] = a;
+        return run(interpreter, environment);
+    }
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Env environment = frame();
+        environment.slots[0] = a;
+        environment.slots[1] = b;
+        return run(interpreter, environment);
+    }
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Env environment = frame();
+        environment.slots[0] = a;
+        environment.slots[1] = b;
+        environment.slots[2] = c;
+        return run(interpreter, environment);
+    }
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Env environment = frame();
+        environment.slots[0] = a;
+        environment.slots[1] = b;
+        environment.slots[2] = c;
+        environment.slots[3] = d;
+        return run(interpreter, environment);
+    }
+    private Object run(Interpreter interpreter, Env environment) {
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null) return runProfiled(interpreter, environment, profiler);
+        Object result = invoke(interpreter, environment);
+        while (result instanceof TailCall) {
+            TailCall tailCall = (TailCall) result;
+            result = tailCall.function.invoke(interpreter, tailCall.frame);
+        }
+        return result;
+    }
+    private Object runProfiled(Interpreter interpreter, Env environment, Profiler profiler) {
+        profiler.enter(label());
+        try {
+            Object result = invoke(interpreter, environment);
+            while (result instanceof TailCall) {
+                TailCall tailCall = (TailCall) result;
+                profiler.replace(tailCall.function.label());
+                result = tailCall.function.invoke(interpreter, tailCall.frame);
+            }
+            return result;
+        } finally {
+            profiler.exit();
+        }
+    }
+    private String label() {
+        if (label == null) label = Profiler.label(declaration.name);
+        return label;
+    }
+    private Object invoke(Interpreter interpreter, Env environment) {
+        CompiledBody compiled = declaration.compiled;
+        // compiled code recurses on the Java stack, so --deep keeps to the tree-walker and its stack segments
+        if (compiled != null && interpreter.stackSegment == 0 && canEnterCompiled(interpreter, environment.slots)) {
+            try {
+                return compiled.call(environment.slots);
+            } catch (StackOverflowError error) {
+                throw stackOverflow();
+            }
+        }
+        if (declaration.calls < JIT_THRESHOLD && ++declaration.calls == JIT_THRESHOLD) {
+            compile(interpreter);
+        }
+        for (int slot : declaration.cellParams) {
+            environment.slots[slot] = new Cell(environment.slots[slot]);
         }
-
         try {
-            interpreter.executeBlock(declaration.body, environment);
+            interpreter.executeBlock(declaration.body(), environment);
         } catch (Return returnValue) {
             return returnValue.value;
+        } catch (StackOverflowError error) {
+            throw stackOverflow();
         }
         return null;
     }
+    private RuntimeError stackOverflow() {
+        return new RuntimeError(declaration.name, "stack overflow, run with --deep for deeper recursion");
+    }
+    // compiled code calls itself through its global name, so only top-level functions qualify
+    private void compile(Interpreter interpreter) {
+        if (declaration.slot >= 0) return;
+        globalSlot = interpreter.globals.indexOf(declaration.name);
+        if (globalSlot < 0) return;
+        declaration.compiled = JitCompiler.compile(declaration);
+    }
+    private boolean canEnterCompiled(Interpreter interpreter, Object[] slots) {
+        // compiled by an earlier run, this run's global still has to be found
+        if (globalSlot < 0) globalSlot = interpreter.globals.indexOf(declaration.name);
+        if (globalSlot < 0 || interpreter.globals.slots[globalSlot] != this) return false;
+        for (int i = 0; i < declaration.args.size(); i++) {
+            if (!(slots[i] instanceof Double)) return false;
+        }
+        return true;
+    }
     @Override
     public int arity() {
         return declaration.args.size();
     }
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
 
 }
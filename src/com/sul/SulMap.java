@@ -0,0 +1,218 @@
+package com.sul;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ * Sul map. Keys are numbers, strings, booleans or nihil, so the table keeps them in typed parallel arrays
+ * instead of boxing them: a number key is stored as its bits, a string key as a flat String whose hash Java
+ * caches. Open addressing with linear probing, removal shifts the rest of the probe run back so no
+ * tombstones pile up. Key equality is Sul's ==, numbers compare by their bits like Double.equals does.
+ */
+public final class SulMap {
+    private static final byte EMPTY = 0;
+    private static final byte NUMBER = 1;
+    private static final byte STRING = 2;
+    private static final byte TRUE = 3;
+    private static final byte FALSE = 4;
+    private static final byte NIHIL = 5;
+    private static final int MIN_CAPACITY = 8;
+    private byte[] kinds;
+    // bits of the number key, only where kinds says NUMBER
+    private long[] numbers;
+    // the string key, only where kinds says STRING
+    private String[] strings;
+    private Object[] values;
+    private int size;
+
+    public SulMap() {
+        allocate(MIN_CAPACITY);
+    }
+    private void allocate(int capacity) {
+        kinds = new byte[capacity];
+        numbers = new long[capacity];
+        strings = new String[capacity];
+        values = new Object[capacity];
+    }
+
+    public static boolean isKey(Object key) {
+        return key == null || key instanceof Double || key instanceof CharSequence || key instanceof Boolean;
+    }
+    public int size() {
+        return size;
+    }
+
+    // nihil when the key is absent, callers check isKey first
+    public Object get(Object key) {
+        if (key instanceof Double) return get((double) (Double) key);
+        if (key instanceof CharSequence) {
+            String string = key.toString();
+            int slot = find(STRING, 0, string, hash(string));
+            return slot >= 0 ? values[slot] : null;
+        }
+        byte kind = kind(key);
+        int slot = find(kind, 0, null, hash(kind));
+        return slot >= 0 ? values[slot] : null;
+    }
+    public Object get(double key) {
+        long bits = Double.doubleToLongBits(key);
+        int slot = find(NUMBER, bits, null, hash(bits));
+        return slot >= 0 ? values[slot] : null;
+    }
+    public void put(Object key, Object value) {
+        if (key instanceof Double) {
+            put((double) (Double) key, value);
+        } else if (key instanceof CharSequence) {
+            String string = key.toString();
+            insert(STRING, 0, string, hash(string), value);
+        } else {
+            byte kind = kind(key);
+            insert(kind, 0, null, hash(kind), value);
+        }
+    }
+    public void put(double key, Object value) {
+        long bits = Double.doubleToLongBits(key);
+        insert(NUMBER, bits, null, hash(bits), value);
+    }
+    // the value that was stored, nihil when the key was absent
+    public Object remove(Object key) {
+        int slot;
+        if (key instanceof Double) {
+            long bits = Double.doubleToLongBits((Double) key);
+            slot = find(NUMBER, bits, null, hash(bits));
+        } else if (key instanceof CharSequence) {
+            String string = key.toString();
+            slot = find(STRING, 0, string, hash(string));
+        } else {
+            byte kind = kind(key);
+            slot = find(kind, 0, null, hash(kind));
+        }
+        if (slot < 0) return null;
+        Object value = values[slot];
+        delete(slot);
+        return value;
+    }
+
+    private static byte kind(Object key) {
+        if (key == null) return NIHIL;
+        if (key instanceof Boolean) return (Boolean) key ? TRUE : FALSE;
+        throw new IllegalArgumentException("not a map key: " + key);
+    }
+    private static int hash(long bits) {
+        long mixed = bits * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+    private static int hash(String string) {
+        int mixed = string.hashCode() * 0x9E3779B9;
+        return mixed ^ (mixed >>> 16);
+    }
+    private static int hash(byte kind) {
+        return kind * 0x9E3779B9;
+    }
+    private static int hash(byte kind, long bits, String string) {
+        if (kind == NUMBER) return hash(bits);
+        if (kind == STRING) return hash(string);
+        return hash(kind);
+    }
+    private boolean matches(int slot, byte kind, long bits, String string) {
+        if (kinds[slot] != kind) return false;
+        if (kind == NUMBER) return numbers[slot] == bits;
+        if (kind == STRING) return strings[slot].equals(string);
+        return true;
+    }
+    private int find(byte kind, long bits, String string, int hash) {
+        int mask = kinds.length - 1;
+        for (int slot = hash & mask; kinds[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (matches(slot, kind, bits, string)) return slot;
+        }
+        return -1;
+    }
+    private void insert(byte kind, long bits, String string, int hash, Object value) {
+        int mask = kinds.length - 1;
+        int slot = hash & mask;
+        for (; kinds[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (matches(slot, kind, bits, string)) {
+                values[slot] = value;
+                return;
+            }
+        }
+        kinds[slot] = kind;
+        numbers[slot] = bits;
+        strings[slot] = string;
+        values[slot] = value;
+        // kept at most three quarters full so probe runs stay short
+        if (++size * 4 > kinds.length * 3) resize(kinds.length * 2);
+    }
+    private void resize(int capacity) {
+        byte[] oldKinds = kinds;
+        long[] oldNumbers = numbers;
+        String[] oldStrings = strings;
+        Object[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKinds.length; i++) {
+            byte kind = oldKinds[i];
+            if (kind == EMPTY) continue;
+            int slot = hash(kind, oldNumbers[i], oldStrings[i]) & mask;
+            while (kinds[slot] != EMPTY) slot = (slot + 1) & mask;
+            kinds[slot] = kind;
+            numbers[slot] = oldNumbers[i];
+            strings[slot] = oldStrings[i];
+            values[slot] = oldValues[i];
+        }
+    }
+    // moves later entries of the probe run into the hole so lookups never stop early
+    private void delete(int hole) {
+        int mask = kinds.length - 1;
+        for (int slot = (hole + 1) & mask; kinds[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int home = hash(kinds[slot], numbers[slot], strings[slot]) & mask;
+            // the entry can fill the hole unless its home lies cyclically after the hole
+            boolean movable = hole <= slot ? home <= hole || home > slot : home <= hole && home > slot;
+            if (movable) {
+                kinds[hole] = kinds[slot];
+                numbers[hole] = numbers[slot];
+                strings[hole] = strings[slot];
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+        kinds[hole] = EMPTY;
+        strings[hole] = null;
+        values[hole] = null;
+        size--;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        SulArray.append(text, this, new IdentityHashMap<>());
+        return text.toString();
+    }
+    // a map that contains itself prints as {...} the second time around
+    void append(StringBuilder text, Map<Object, Boolean> open) {
+        if (open.put(this, Boolean.TRUE) != null) {
+            text.append("{...}");
+            return;
+        }
+        text.append('{');
+        boolean first = true;
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == EMPTY) continue;
+            if (!first) text.append(", ");
+            first = false;
+            text.append(Interpreter.makeValidString(key(i))).append(": ");
+            SulArray.append(text, values[i], open);
+        }
+        text.append('}');
+        open.remove(this);
+    }
+    private Object key(int slot) {
+        switch (kinds[slot]) {
+            case NUMBER: return Double.longBitsToDouble(numbers[slot]);
+            case STRING: return strings[slot];
+            case TRUE: return Boolean.TRUE;
+            case FALSE: return Boolean.FALSE;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.sul;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/*
+ * A script compiled by SulEngine. Nothing in it changes after compile, so one program can be run by any
+ * number of threads at once: the optimized tree is kept serialized and every isolate reads its own copy,
+ * because running a tree specializes its nodes in place.
+ */
+public final class SulProgram {
+    // null when the script did not compile
+    private final byte[] tree;
+    // imports are relative to it
+    final Path directory;
+    private final List<SulError> errors;
+
+    SulProgram(byte[] tree, Path directory, List<SulError> errors) {
+        this.tree = tree;
+        this.directory = directory;
+        this.errors = List.copyOf(errors);
+    }
+    public boolean ok() {
+        return errors.isEmpty();
+    }
+    // syntax and resolution errors, empty when the program can run
+    public List<SulError> errors() {
+        return errors;
+    }
+    List<Stmt> statements() {
+        List<Stmt> statements = AstCache.deserialize(tree);
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.ImportStmt) ModuleLoader.prefetch((Stmt.ImportStmt) stmt, directory);
+        }
+        return statements;
+    }
+}
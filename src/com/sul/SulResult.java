@@ -0,0 +1,23 @@
+package com.sul;
+
+import java.util.List;
+
+// what one run of a SulProgram printed, and the error that stopped it if any
+public final class SulResult {
+    private final String output;
+    private final List<SulError> errors;
+
+    SulResult(String output, List<SulError> errors) {
+        this.output = output;
+        this.errors = List.copyOf(errors);
+    }
+    public boolean ok() {
+        return errors.isEmpty();
+    }
+    public String output() {
+        return output;
+    }
+    public List<SulError> errors() {
+        return errors;
+    }
+}
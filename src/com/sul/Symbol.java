@@ -0,0 +1,54 @@
+package com.sul;
+
+import java.util.Map;
+
+// an identifier, the Scanner hands out one per distinct name in a source, so names from one program
+// usually compare by identity and names from different sources by their text
+public final class Symbol {
+    private static final Map<String, Symbol> KEYWORDS = Map.ofEntries(
+            keyword("if", TokenType.IF),
+            keyword("else", TokenType.ELSE),
+            keyword("and", TokenType.AND),
+            keyword("or", TokenType.OR),
+            keyword("false", TokenType.FALSE),
+            keyword("true", TokenType.TRUE),
+            keyword("nihil", TokenType.NULL),
+            keyword("print", TokenType.PRINT),
+            keyword("return", TokenType.RETURN),
+            keyword("while", TokenType.WHILE),
+            keyword("for", TokenType.FOR),
+            keyword("var", TokenType.VAR),
+            keyword("fun", TokenType.FUN),
+            keyword("break", TokenType.BREAK),
+            keyword("continue", TokenType.CONTINUE),
+            keyword("import", TokenType.IMPORT));
+    public final String name;
+    // the keyword this name spells, EOF for plain identifiers
+    final TokenType keyword;
+
+    private Symbol(String name, TokenType keyword) {
+        this.name = name;
+        this.keyword = keyword;
+    }
+    private static Map.Entry<String, Symbol> keyword(String name, TokenType type) {
+        return Map.entry(name, new Symbol(name, type));
+    }
+    // nothing is kept per name, a symbol lives as long as the tokens and tables that hold it
+    public static Symbol of(String name) {
+        Symbol keyword = KEYWORDS.get(name);
+        return keyword != null ? keyword : new Symbol(name, TokenType.EOF);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return this == other || other instanceof Symbol && name.equals(((Symbol) other).name);
+    }
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+    @Override
+    public String toString() {
+        return name;
+    }
+}
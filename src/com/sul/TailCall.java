@@ -0,0 +1,13 @@
+package com.sul;
+
+// returned in place of a value by a tail call, SulFunction keeps running it in the same Java frame
+final class TailCall {
+    final SulFunction function;
+    // the callee's frame with the arguments already bound
+    final Env frame;
+
+    TailCall(SulFunction function, Env frame) {
+        this.function = function;
+        this.frame = frame;
+    }
+}
@@ -1,15 +1,39 @@
 package com.sul;
 
 public class Token {
-    final TokenType type;
-    final int position;
-    final String lexeme;
-    final Object value;
+    public final TokenType type;
+    public final int position;
+    public final Object value;
+    // scanned tokens only point into the source, their text is copied the first time someone asks for it
+    private final CharSequence source;
+    private final int offset;
+    private final int length;
+    private String lexeme;
+    private Symbol symbol;
     public Token(TokenType type, int position, String lexeme, Object value) {
+        this(type, position, lexeme, 0, lexeme.length(), value);
+        this.lexeme = lexeme;
+    }
+    Token(TokenType type, int position, Symbol symbol) {
+        this(type, position, symbol.name, symbol.name);
+        this.symbol = symbol;
+    }
+    Token(TokenType type, int position, CharSequence source, int offset, int length, Object value) {
         this.type = type;
         this.position = position;
-        this.lexeme = lexeme;
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
         this.value = value;
     }
+    public String lexeme() {
+        if (lexeme == null) lexeme = source.subSequence(offset, offset + length).toString();
+        return lexeme;
+    }
+    // identifiers from the Scanner come with their symbol, other tokens make one when used as a name
+    public Symbol symbol() {
+        if (symbol == null) symbol = Symbol.of(lexeme());
+        return symbol;
+    }
 
 }
@@ -1,8 +1,8 @@
 package com.sul;
 
-enum TokenType {
+public enum TokenType {
     // single character
-    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
+    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, LEFT_BRACKET, RIGHT_BRACKET,
     COLON, COMMA, SEMICOLON, DOT, MINUS, PLUS, STAR, SLASH,
     // single-double charakters
     BANG, BANG_EQUAL,
@@ -14,7 +14,7 @@ enum TokenType {
     IDENTIFIER, STRING, NUMBER,
     // keywords
     AND, OR, ELSE, FALSE, TRUE, IF, NULL, PRINT,
-    RETURN, WHILE, VAR, FUN, FOR, BREAK, CONTINUE,
+    RETURN, WHILE, VAR, FUN, FOR, BREAK, CONTINUE, IMPORT,
 
     EOF, FINISH
 }
@@ -0,0 +1,111 @@
+package com.sul.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// code attribute of one method, tracks the operand stack depth so max_stack comes for free
+final class Bytecode {
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int DSTORE = 0x39;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DNEG = 0x77;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int DRETURN = 0xaf;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int CHECKCAST = 0xc0;
+
+    static final class Label {
+        private int position = -1;
+        private final List<Integer> fixups = new ArrayList<>();
+    }
+
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<>();
+    private int stack = 0;
+    private int maxStack = 0;
+    // false right after a return or goto, until a label some jump targets is placed
+    private boolean reachable = true;
+
+    void op(int opcode, int stackDelta) {
+        code.write(opcode);
+        adjust(stackDelta);
+        if (opcode == GOTO || opcode == DRETURN || opcode == ARETURN || opcode == RETURN) reachable = false;
+    }
+    void op(int opcode, int operand, int operandSize, int stackDelta) {
+        op(opcode, stackDelta);
+        if (operandSize == 1) u1(operand);
+        else u2(operand);
+    }
+    void u1(int value) {
+        code.write(value & 0xff);
+    }
+    void u2(int value) {
+        code.write((value >> 8) & 0xff);
+        code.write(value & 0xff);
+    }
+    private void adjust(int delta) {
+        stack += delta;
+        maxStack = Math.max(maxStack, stack);
+    }
+    void jump(int opcode, Label target, int stackDelta) {
+        int at = code.size();
+        op(opcode, stackDelta);
+        target.fixups.add(at);
+        u2(0);
+        if (!labels.contains(target)) labels.add(target);
+    }
+    void mark(Label label) {
+        label.position = code.size();
+        if (!labels.contains(label)) labels.add(label);
+        reachable = reachable || !label.fixups.isEmpty();
+    }
+    boolean reachable() {
+        return reachable;
+    }
+    int length() {
+        return code.size();
+    }
+    int maxStack() {
+        return maxStack;
+    }
+    byte[] toByteArray() {
+        byte[] bytes = code.toByteArray();
+        for (Label label : labels) {
+            for (int at : label.fixups) {
+                int offset = label.position - at;
+                if (label.position < 0 || offset != (short) offset) {
+                    throw new JitCompiler.Unsupported("jump out of range");
+                }
+                bytes[at + 1] = (byte) (offset >> 8);
+                bytes[at + 2] = (byte) offset;
+            }
+        }
+        if (bytes.length > 0xffff) throw new JitCompiler.Unsupported("method too large");
+        return Arrays.copyOf(bytes, bytes.length);
+    }
+}
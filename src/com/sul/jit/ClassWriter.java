@@ -0,0 +1,129 @@
+package com.sul.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// just enough of the class file format for one generated class, version 49 so no stack maps are needed
+final class ClassWriter {
+    private static final int VERSION = 49;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    int utf8(String value) {
+        return entry("U" + value, 1, out -> out.writeUTF(value), 1);
+    }
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return entry("C" + internalName, 7, out -> out.writeShort(name), 1);
+    }
+    int doubleConstant(double value) {
+        return entry("D" + Double.doubleToRawLongBits(value), 6, out -> out.writeDouble(value), 2);
+    }
+    int intConstant(int value) {
+        return entry("I" + value, 3, out -> out.writeInt(value), 1);
+    }
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = entry("N" + name + descriptor, 12, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        }, 1);
+        return entry(tag + owner + "." + name + descriptor, tag, out -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        }, 1);
+    }
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+    private int entry(String key, int tag, EntryWriter writer, int size) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(tag);
+            writer.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xffff) throw new JitCompiler.Unsupported("constant pool overflow");
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    void addMethod(int access, String name, String descriptor, Bytecode code, int maxLocals) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeAttribute = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + code.length());
+            out.writeShort(code.maxStack());
+            out.writeShort(maxLocals);
+            out.writeInt(code.length());
+            out.write(code.toByteArray());
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray(String thisClass, String superClass, String... interfaces) {
+        int thisIndex = classRef(thisClass);
+        int superIndex = classRef(superClass);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndexes.length);
+            for (int index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,6 @@
+package com.sul.jit;
+
+// entry point of a function body compiled to a hidden JVM class, the parameters are the first slots and all Doubles
+public interface CompiledBody {
+    Object call(Object[] slots);
+}
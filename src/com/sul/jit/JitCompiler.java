@@ -0,0 +1,340 @@
+package com.sul.jit;
+
+import com.sul.Expr;
+import com.sul.Stmt;
+import com.sul.TokenType;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compiles a purely numeric function into a hidden class with a static double method, so HotSpot can
+ * inline and optimize it like regular Java. Only parameters, local numeric variables, arithmetic,
+ * comparisons, if/while/for/break/continue/return and direct recursion through the function's own global name are
+ * accepted. Every value in such a body is a double, the caller guarantees the arguments are numbers.
+ */
+public final class JitCompiler {
+    static final class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+    // jump targets of break and continue in one enclosing loop
+    private static final class Loop {
+        final Bytecode.Label next = new Bytecode.Label();
+        final Bytecode.Label exit = new Bytecode.Label();
+    }
+    private static final String CLASS_NAME = "com/sul/jit/Compiled";
+    private static final String SUPPORT = "com/sul/jit/JitSupport";
+    private final Stmt.FunctionDecl function;
+    private final String descriptor;
+    private final ClassWriter writer = new ClassWriter();
+    private final Bytecode code = new Bytecode();
+    // one map per block inside the function, frame slot to JVM local index
+    private final List<Map<Integer, Integer>> scopes = new ArrayList<>();
+    // self tail calls store their arguments into the parameters and jump back here
+    private final Bytecode.Label entry = new Bytecode.Label();
+    private final Deque<Loop> loops = new ArrayDeque<>();
+    private int nextLocal = 0;
+
+    private JitCompiler(Stmt.FunctionDecl function) {
+        this.function = function;
+        this.descriptor = "(" + "D".repeat(function.args.size()) + ")D";
+    }
+    // null when the body uses anything outside the supported subset
+    public static CompiledBody compile(Stmt.FunctionDecl function) {
+        try {
+            byte[] bytes = new JitCompiler(function).generate();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledBody) lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+        } catch (Unsupported | LinkageError | ReflectiveOperationException e) {
+            return null;
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private byte[] generate() {
+        if (function.args.size() > 100) throw new Unsupported("too many parameters");
+        Map<Integer, Integer> parameters = new HashMap<>();
+        for (int i = 0; i < function.args.size(); i++) {
+            parameters.put(i, allocateLocal());
+        }
+        scopes.add(parameters);
+        code.mark(entry);
+        statements(function.body());
+        if (code.reachable()) throw new Unsupported("function can return nihil");
+        writer.addMethod(0x0009, "run", descriptor, code, nextLocal);
+        writer.addMethod(0x0001, "call", "([Ljava/lang/Object;)Ljava/lang/Object;", bridge(), 2);
+        writer.addMethod(0x0001, "<init>", "()V", constructor(), 1);
+        return writer.toByteArray(CLASS_NAME, "java/lang/Object", "com/sul/jit/CompiledBody");
+    }
+    // unboxes the callee's frame slots into the static method and boxes the result
+    private Bytecode bridge() {
+        Bytecode bridge = new Bytecode();
+        int unbox = writer.methodRef("java/lang/Double", "doubleValue", "()D");
+        for (int i = 0; i < function.args.size(); i++) {
+            bridge.op(Bytecode.ALOAD, 1, 1, 1);
+            bridge.op(Bytecode.BIPUSH, i, 1, 1);
+            bridge.op(Bytecode.AALOAD, -1);
+            bridge.op(Bytecode.CHECKCAST, writer.classRef("java/lang/Double"), 2, 0);
+            bridge.op(Bytecode.INVOKEVIRTUAL, unbox, 2, 1);
+        }
+        bridge.op(Bytecode.INVOKESTATIC, writer.methodRef(CLASS_NAME, "run", descriptor), 2,
+                2 - 2 * function.args.size());
+        bridge.op(Bytecode.INVOKESTATIC,
+                writer.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"), 2, -1);
+        bridge.op(Bytecode.ARETURN, -1);
+        return bridge;
+    }
+    private Bytecode constructor() {
+        Bytecode constructor = new Bytecode();
+        constructor.op(Bytecode.ALOAD, 0, 1, 1);
+        constructor.op(Bytecode.INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"), 2, -1);
+        constructor.op(Bytecode.RETURN, 0);
+        return constructor;
+    }
+    private int allocateLocal() {
+        int local = nextLocal;
+        nextLocal += 2;
+        if (nextLocal > 0xff) throw new Unsupported("too many locals");
+        return local;
+    }
+    private int local(Expr.Binding binding, int slot) {
+        if (binding != Expr.Binding.LOCAL) throw new Unsupported("variable outside the frame");
+        for (int scope = scopes.size() - 1; scope >= 0; scope--) {
+            Integer local = scopes.get(scope).get(slot);
+            if (local != null) return local;
+        }
+        throw new Unsupported("not a numeric local");
+    }
+
+    private void statements(List<Stmt> statements) {
+        for (Stmt stmt : statements) {
+            statement(stmt);
+        }
+    }
+    private void statement(Stmt stmt) {
+        if (stmt instanceof Stmt.Decl) {
+            Stmt.Decl decl = (Stmt.Decl) stmt;
+            if (decl.expr == null || decl.slot < 0 || decl.captured) throw new Unsupported("declaration without a number");
+            number(decl.expr);
+            int local = allocateLocal();
+            scopes.get(scopes.size() - 1).put(decl.slot, local);
+            code.op(Bytecode.DSTORE, local, 1, -2);
+        } else if (stmt instanceof Stmt.Expression) {
+            assignment(((Stmt.Expression) stmt).expr);
+        } else if (stmt instanceof Stmt.Block) {
+            scopes.add(new HashMap<>());
+            statements(((Stmt.Block) stmt).stmts);
+            scopes.remove(scopes.size() - 1);
+        } else if (stmt instanceof Stmt.IfStmt) {
+            Stmt.IfStmt ifStmt = (Stmt.IfStmt) stmt;
+            Bytecode.Label elseLabel = new Bytecode.Label();
+            branch(ifStmt.condition, elseLabel, false);
+            statement(ifStmt.thenStmt);
+            if (ifStmt.elseStmt == null) {
+                code.mark(elseLabel);
+                return;
+            }
+            Bytecode.Label end = new Bytecode.Label();
+            if (code.reachable()) code.jump(Bytecode.GOTO, end, 0);
+            code.mark(elseLabel);
+            statement(ifStmt.elseStmt);
+            code.mark(end);
+        } else if (stmt instanceof Stmt.WhileStmt) {
+            Stmt.WhileStmt whileStmt = (Stmt.WhileStmt) stmt;
+            Loop loop = new Loop();
+            code.mark(loop.next);
+            branch(whileStmt.condition, loop.exit, false);
+            loops.push(loop);
+            statement(whileStmt.body);
+            loops.pop();
+            if (code.reachable()) code.jump(Bytecode.GOTO, loop.next, 0);
+            code.mark(loop.exit);
+        } else if (stmt instanceof Stmt.ForStmt) {
+            Stmt.ForStmt forStmt = (Stmt.ForStmt) stmt;
+            scopes.add(new HashMap<>());
+            if (forStmt.initializer != null) statement(forStmt.initializer);
+            Loop loop = new Loop();
+            Bytecode.Label top = new Bytecode.Label();
+            code.mark(top);
+            if (forStmt.condition != null) branch(forStmt.condition, loop.exit, false);
+            loops.push(loop);
+            statement(forStmt.body);
+            loops.pop();
+            code.mark(loop.next);
+            if (code.reachable()) {
+                if (forStmt.increment != null) assignment(forStmt.increment);
+                code.jump(Bytecode.GOTO, top, 0);
+            }
+            code.mark(loop.exit);
+            scopes.remove(scopes.size() - 1);
+        } else if (stmt instanceof Stmt.LoopControlStmt) {
+            Loop loop = loops.peek();
+            boolean isBreak = ((Stmt.LoopControlStmt) stmt).keyWord.type == TokenType.BREAK;
+            code.jump(Bytecode.GOTO, isBreak ? loop.exit : loop.next, 0);
+        } else if (stmt instanceof Stmt.ReturnStmt) {
+            Stmt.ReturnStmt returnStmt = (Stmt.ReturnStmt) stmt;
+            if (returnStmt.value == null) throw new Unsupported("returns nihil");
+            Expr.CallExpr tailCall = returnStmt.tailCallExpr();
+            if (tailCall != null) {
+                selfCallArguments(tailCall);
+                for (int i = tailCall.args.size() - 1; i >= 0; i--) {
+                    code.op(Bytecode.DSTORE, scopes.get(0).get(i), 1, -2);
+                }
+                code.jump(Bytecode.GOTO, entry, 0);
+                return;
+            }
+            number(returnStmt.value);
+            code.op(Bytecode.DRETURN, -2);
+        } else {
+            throw new Unsupported(stmt.getClass().getSimpleName());
+        }
+    }
+
+    // the only expressions whose value may be dropped are assignments to numeric locals
+    private void assignment(Expr expr) {
+        if (!(expr instanceof Expr.Assigment)) throw new Unsupported("expression statement");
+        Expr.Assigment assigment = (Expr.Assigment) expr;
+        int local = local(assigment.binding, assigment.slot);
+        number(assigment.value);
+        code.op(Bytecode.DSTORE, local, 1, -2);
+    }
+
+    // leaves one double on the operand stack
+    private void number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) expr).value;
+            if (!(value instanceof Double)) throw new Unsupported("non-number literal");
+            double number = (Double) value;
+            if (Double.doubleToRawLongBits(number) == 0L) code.op(Bytecode.DCONST_0, 2);
+            else if (number == 1.0) code.op(Bytecode.DCONST_1, 2);
+            else code.op(Bytecode.LDC2_W, writer.doubleConstant(number), 2, 2);
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            code.op(Bytecode.DLOAD, local(variable.binding, variable.slot), 1, 2);
+        } else if (expr instanceof Expr.Grouping) {
+            number(((Expr.Grouping) expr).expr);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.operator.type != TokenType.MINUS) throw new Unsupported("boolean value");
+            number(unary.expression);
+            code.op(Bytecode.DNEG, 0);
+        } else if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case PLUS -> arithmetic(binary, Bytecode.DADD);
+                case MINUS -> arithmetic(binary, Bytecode.DSUB);
+                case STAR -> arithmetic(binary, Bytecode.DMUL);
+                case SLASH -> {
+                    number(binary.left);
+                    number(binary.right);
+                    pushInt(binary.operator.position);
+                    code.op(Bytecode.INVOKESTATIC, writer.methodRef(SUPPORT, "divide", "(DDI)D"), 2, -3);
+                }
+                default -> throw new Unsupported("boolean value");
+            }
+        } else if (expr instanceof Expr.CallExpr) {
+            Expr.CallExpr call = (Expr.CallExpr) expr;
+            selfCallArguments(call);
+            code.op(Bytecode.INVOKESTATIC, writer.methodRef(CLASS_NAME, "run", descriptor), 2,
+                    2 - 2 * call.args.size());
+        } else {
+            throw new Unsupported(expr.getClass().getSimpleName());
+        }
+    }
+    // only calls back into the function being compiled are supported
+    private void selfCallArguments(Expr.CallExpr call) {
+        if (!(call.name instanceof Expr.Variable)) throw new Unsupported("computed callee");
+        Expr.Variable callee = (Expr.Variable) call.name;
+        if (callee.binding != Expr.Binding.GLOBAL || !callee.name.symbol().equals(function.name.symbol())
+                || call.args.size() != function.args.size()) {
+            throw new Unsupported("call to another function");
+        }
+        for (Expr argument : call.args) {
+            number(argument);
+        }
+    }
+    private void arithmetic(Expr.Binary binary, int opcode) {
+        number(binary.left);
+        number(binary.right);
+        code.op(opcode, -2);
+    }
+    private void pushInt(int value) {
+        if (value == (short) value) code.op(Bytecode.SIPUSH, value, 2, 1);
+        else code.op(Bytecode.LDC_W, writer.intConstant(value), 2, 1);
+    }
+
+    // jumps to target when the condition evaluates to jumpIf, falls through otherwise
+    private void branch(Expr condition, Bytecode.Label target, boolean jumpIf) {
+        if (condition instanceof Expr.Grouping) {
+            branch(((Expr.Grouping) condition).expr, target, jumpIf);
+        } else if (condition instanceof Expr.Literal && ((Expr.Literal) condition).value instanceof Boolean) {
+            if (((Expr.Literal) condition).value.equals(jumpIf)) code.jump(Bytecode.GOTO, target, 0);
+        } else if (condition instanceof Expr.Unary
+                && ((Expr.Unary) condition).operator.type == TokenType.BANG) {
+            branch(((Expr.Unary) condition).expression, target, !jumpIf);
+        } else if (condition instanceof Expr.And) {
+            Expr.And and = (Expr.And) condition;
+            if (jumpIf) {
+                Bytecode.Label skip = new Bytecode.Label();
+                branch(and.left, skip, false);
+                branch(and.right, target, true);
+                code.mark(skip);
+            } else {
+                branch(and.left, target, false);
+                branch(and.right, target, false);
+            }
+        } else if (condition instanceof Expr.Or) {
+            Expr.Or or = (Expr.Or) condition;
+            if (jumpIf) {
+                branch(or.left, target, true);
+                branch(or.right, target, true);
+            } else {
+                Bytecode.Label skip = new Bytecode.Label();
+                branch(or.left, skip, true);
+                branch(or.right, target, false);
+                code.mark(skip);
+            }
+        } else if (condition instanceof Expr.Binary) {
+            compare((Expr.Binary) condition, target, jumpIf);
+        } else {
+            throw new Unsupported("condition");
+        }
+    }
+    private void compare(Expr.Binary binary, Bytecode.Label target, boolean jumpIf) {
+        TokenType type = binary.operator.type;
+        if (type == TokenType.EQUAL_EQUAL || type == TokenType.BANG_EQUAL) {
+            number(binary.left);
+            number(binary.right);
+            code.op(Bytecode.INVOKESTATIC, writer.methodRef(SUPPORT, "equal", "(DD)Z"), 2, -3);
+            boolean jumpOnEqual = (type == TokenType.EQUAL_EQUAL) == jumpIf;
+            code.jump(jumpOnEqual ? Bytecode.IFNE : Bytecode.IFEQ, target, -1);
+            return;
+        }
+        // dcmpg/dcmpl are picked so that a NaN operand makes the comparison false
+        int compare;
+        int jump;
+        switch (type) {
+            case LESS -> { compare = Bytecode.DCMPG; jump = jumpIf ? Bytecode.IFLT : Bytecode.IFGE; }
+            case LESS_EQUAL -> { compare = Bytecode.DCMPG; jump = jumpIf ? Bytecode.IFLE : Bytecode.IFGT; }
+            case GREATER -> { compare = Bytecode.DCMPL; jump = jumpIf ? Bytecode.IFGT : Bytecode.IFLE; }
+            case GREATER_EQUAL -> { compare = Bytecode.DCMPL; jump = jumpIf ? Bytecode.IFGE : Bytecode.IFLT; }
+            default -> throw new Unsupported("number used as condition");
+        }
+        number(binary.left);
+        number(binary.right);
+        code.op(compare, -3);
+        code.jump(jump, target, -1);
+    }
+}
@@ -0,0 +1,21 @@
+package com.sul.jit;
+
+import com.sul.RuntimeError;
+import com.sul.Token;
+import com.sul.TokenType;
+
+// called from generated code for the operations that need the interpreter's semantics
+public final class JitSupport {
+    private JitSupport() {
+    }
+    public static double divide(double left, double right, int line) {
+        if (right == 0) {
+            throw new RuntimeError(new Token(TokenType.SLASH, line, "/", null), "cannot divide by 0");
+        }
+        return left / right;
+    }
+    // same result as Double.equals, which the tree-walker uses for ==
+    public static boolean equal(double left, double right) {
+        return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+}
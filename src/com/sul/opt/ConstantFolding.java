@@ -0,0 +1,104 @@
+package com.sul.opt;
+
+import com.sul.Expr;
+import com.sul.Interpreter;
+
+// evaluates operators over literals ahead of time, anything that would raise a runtime error is left alone
+public class ConstantFolding extends TreeRewriter {
+    @Override
+    public String name() {
+        return "constant-folding";
+    }
+
+    static Expr.Literal literal(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expr;
+        }
+        return expr instanceof Expr.Literal ? (Expr.Literal) expr : null;
+    }
+
+    @Override
+    public Expr visitGrouping(Expr.Grouping grouping) {
+        super.visitGrouping(grouping);
+        Expr.Literal literal = literal(grouping.expr);
+        return literal != null ? literal : grouping;
+    }
+
+    @Override
+    public Expr visitBinary(Expr.Binary binary) {
+        super.visitBinary(binary);
+        Expr.Literal left = literal(binary.left);
+        Expr.Literal right = literal(binary.right);
+        if (left == null || right == null) return binary;
+        Object folded = fold(binary, left.value, right.value);
+        return folded == null ? binary : new Expr.Literal(folded);
+    }
+    private static Object fold(Expr.Binary binary, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        switch (binary.operator.type) {
+            case PLUS:
+                if (numbers) return (Double) left + (Double) right;
+                if (left instanceof String && right instanceof String) return (String) left + right;
+                if (left instanceof Double && right instanceof String) return Interpreter.makeValidString(left) + right;
+                if (left instanceof String && right instanceof Double) return left + Interpreter.makeValidString(right);
+                return null;
+            case MINUS:
+                return numbers ? (Object) ((Double) left - (Double) right) : null;
+            case STAR:
+                return numbers ? (Object) ((Double) left * (Double) right) : null;
+            case SLASH:
+                return numbers && (Double) right != 0 ? (Object) ((Double) left / (Double) right) : null;
+            case GREATER:
+                return numbers ? (Object) ((Double) left > (Double) right) : null;
+            case GREATER_EQUAL:
+                return numbers ? (Object) ((Double) left >= (Double) right) : null;
+            case LESS:
+                return numbers ? (Object) ((Double) left < (Double) right) : null;
+            case LESS_EQUAL:
+                return numbers ? (Object) ((Double) left <= (Double) right) : null;
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Expr visitUnary(Expr.Unary unary) {
+        super.visitUnary(unary);
+        Expr.Literal operand = literal(unary.expression);
+        if (operand == null) return unary;
+        switch (unary.operator.type) {
+            case MINUS:
+                if (operand.value instanceof Double) return new Expr.Literal(-(Double) operand.value);
+                return unary;
+            case BANG:
+                if (operand.value instanceof String) return unary;
+                return new Expr.Literal(!Interpreter.isTruthy(operand.value));
+            default:
+                return unary;
+        }
+    }
+
+    @Override
+    public Expr visitOr(Expr.Or or) {
+        super.visitOr(or);
+        Expr.Literal left = literal(or.left);
+        if (left == null) return or;
+        if (Interpreter.isTruthy(left.value)) return new Expr.Literal(true);
+        Expr.Literal right = literal(or.right);
+        return right == null ? or : new Expr.Literal(Interpreter.isTruthy(right.value));
+    }
+
+    @Override
+    public Expr visitAnd(Expr.And and) {
+        super.visitAnd(and);
+        Expr.Literal left = literal(and.left);
+        if (left == null) return and;
+        if (!Interpreter.isTruthy(left.value)) return new Expr.Literal(false);
+        Expr.Literal right = literal(and.right);
+        return right == null ? and : new Expr.Literal(Interpreter.isTruthy(right.value));
+    }
+}
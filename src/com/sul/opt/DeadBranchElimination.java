@@ -0,0 +1,29 @@
+package com.sul.opt;
+
+import com.sul.Expr;
+import com.sul.Interpreter;
+import com.sul.Stmt;
+
+// keeps only the taken branch of an if with a literal condition and drops loops that never run
+public class DeadBranchElimination extends TreeRewriter {
+    @Override
+    public String name() {
+        return "dead-branch-elimination";
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.IfStmt ifStmt) {
+        super.visitIfStmt(ifStmt);
+        Expr.Literal condition = ConstantFolding.literal(ifStmt.condition);
+        if (condition == null) return ifStmt;
+        return Interpreter.isTruthy(condition.value) ? ifStmt.thenStmt : ifStmt.elseStmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.WhileStmt whileStmt) {
+        super.visitWhileStmt(whileStmt);
+        Expr.Literal condition = ConstantFolding.literal(whileStmt.condition);
+        if (condition != null && !Interpreter.isTruthy(condition.value)) return null;
+        return whileStmt;
+    }
+}
@@ -0,0 +1,30 @@
+package com.sul.opt;
+
+import com.sul.Expr;
+import com.sul.Stmt;
+
+// drops expression statements that cannot fail or have side effects, and blocks left empty
+public class NoOpRemoval extends TreeRewriter {
+    @Override
+    public String name() {
+        return "no-op-removal";
+    }
+
+    @Override
+    public Stmt visitExpression(Stmt.Expression expression) {
+        return isPure(expression.expr) ? null : expression;
+    }
+
+    @Override
+    public Stmt visitBlock(Stmt.Block block) {
+        super.visitBlock(block);
+        return block.stmts.isEmpty() ? null : block;
+    }
+    // reading a global can still fail when it was never declared
+    private static boolean isPure(Expr expr) {
+        if (expr instanceof Expr.Literal) return true;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable) expr).binding != Expr.Binding.GLOBAL;
+        if (expr instanceof Expr.Grouping) return isPure(((Expr.Grouping) expr).expr);
+        return false;
+    }
+}
@@ -0,0 +1,11 @@
+package com.sul.opt;
+
+import com.sul.Stmt;
+
+import java.util.List;
+
+// a rewrite of resolved statements, slots assigned by the Resolver must stay valid
+public interface Pass {
+    String name();
+    List<Stmt> run(List<Stmt> statements);
+}
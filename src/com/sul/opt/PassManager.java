@@ -0,0 +1,28 @@
+package com.sul.opt;
+
+import com.sul.Stmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PassManager {
+    private final List<Pass> passes = new ArrayList<>();
+
+    public PassManager add(Pass pass) {
+        passes.add(pass);
+        return this;
+    }
+    // folding first so the later passes see literal conditions and expressions
+    public static PassManager defaults() {
+        return new PassManager()
+                .add(new ConstantFolding())
+                .add(new DeadBranchElimination())
+                .add(new NoOpRemoval());
+    }
+    public List<Stmt> run(List<Stmt> statements) {
+        for (Pass pass : passes) {
+            statements = pass.run(statements);
+        }
+        return statements;
+    }
+}
@@ -0,0 +1,202 @@
+package com.sul.opt;
+
+import com.sul.Expr;
+import com.sul.Stmt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// walks the whole tree and stores back whatever the visit methods return, a null statement is dropped
+abstract class TreeRewriter implements Pass, Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    @Override
+    public List<Stmt> run(List<Stmt> statements) {
+        return rewrite(statements);
+    }
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        for (Stmt stmt : statements) {
+            Stmt result = rewrite(stmt);
+            if (result != null) rewritten.add(result);
+        }
+        return rewritten;
+    }
+    Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+    Expr rewrite(Expr expr) {
+        return expr == null ? null : expr.accept(this);
+    }
+    // branches and loop bodies cannot be left without a statement
+    private static Stmt orEmpty(Stmt stmt) {
+        return stmt == null ? new Stmt.Block(new ArrayList<>()) : stmt;
+    }
+
+    @Override
+    public Expr visitLiteral(Expr.Literal literal) {
+        return literal;
+    }
+
+    @Override
+    public Expr visitBinary(Expr.Binary binary) {
+        binary.left = rewrite(binary.left);
+        binary.right = rewrite(binary.right);
+        return binary;
+    }
+
+    @Override
+    public Expr visitUnary(Expr.Unary unary) {
+        unary.expression = rewrite(unary.expression);
+        return unary;
+    }
+
+    @Override
+    public Expr visitGrouping(Expr.Grouping grouping) {
+        grouping.expr = rewrite(grouping.expr);
+        return grouping;
+    }
+
+    @Override
+    public Expr visitVariable(Expr.Variable variable) {
+        return variable;
+    }
+
+    @Override
+    public Expr visitAssigment(Expr.Assigment assigment) {
+        assigment.value = rewrite(assigment.value);
+        return assigment;
+    }
+
+    @Override
+    public Expr visitOr(Expr.Or or) {
+        or.left = rewrite(or.left);
+        or.right = rewrite(or.right);
+        return or;
+    }
+
+    @Override
+    public Expr visitAnd(Expr.And and) {
+        and.left = rewrite(and.left);
+        and.right = rewrite(and.right);
+        return and;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.CallExpr callExpr) {
+        callExpr.name = rewrite(callExpr.name);
+        List<Expr> args = new ArrayList<>(callExpr.args.size());
+        for (Expr argument : callExpr.args) {
+            args.add(rewrite(argument));
+        }
+        callExpr.args = args;
+        return callExpr;
+    }
+
+    @Override
+    public Expr visitArrayLiteral(Expr.ArrayLiteral arrayLiteral) {
+        List<Expr> elements = new ArrayList<>(arrayLiteral.elements.size());
+        for (Expr element : arrayLiteral.elements) {
+            elements.add(rewrite(element));
+        }
+        arrayLiteral.elements = elements;
+        return arrayLiteral;
+    }
+
+    @Override
+    public Expr visitMapLiteral(Expr.MapLiteral mapLiteral) {
+        List<Expr> keys = new ArrayList<>(mapLiteral.keys.size());
+        List<Expr> values = new ArrayList<>(mapLiteral.values.size());
+        for (int i = 0; i < mapLiteral.keys.size(); i++) {
+            keys.add(rewrite(mapLiteral.keys.get(i)));
+            values.add(rewrite(mapLiteral.values.get(i)));
+        }
+        mapLiteral.keys = keys;
+        mapLiteral.values = values;
+        return mapLiteral;
+    }
+
+    @Override
+    public Expr visitIndex(Expr.Index index) {
+        index.array = rewrite(index.array);
+        index.index = rewrite(index.index);
+        return index;
+    }
+
+    @Override
+    public Expr visitIndexAssigment(Expr.IndexAssigment indexAssigment) {
+        indexAssigment.array = rewrite(indexAssigment.array);
+        indexAssigment.index = rewrite(indexAssigment.index);
+        indexAssigment.value = rewrite(indexAssigment.value);
+        return indexAssigment;
+    }
+
+    @Override
+    public Stmt visitExpression(Stmt.Expression expression) {
+        expression.expr = rewrite(expression.expr);
+        return expression;
+    }
+
+    @Override
+    public Stmt visitPrint(Stmt.Print print) {
+        print.expr = rewrite(print.expr);
+        return print;
+    }
+
+    @Override
+    public Stmt visitDecl(Stmt.Decl decl) {
+        decl.expr = rewrite(decl.expr);
+        return decl;
+    }
+
+    @Override
+    public Stmt visitBlock(Stmt.Block block) {
+        block.stmts = rewrite(block.stmts);
+        return block;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.IfStmt ifStmt) {
+        ifStmt.condition = rewrite(ifStmt.condition);
+        ifStmt.thenStmt = orEmpty(rewrite(ifStmt.thenStmt));
+        ifStmt.elseStmt = rewrite(ifStmt.elseStmt);
+        return ifStmt;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.WhileStmt whileStmt) {
+        whileStmt.condition = rewrite(whileStmt.condition);
+        whileStmt.body = orEmpty(rewrite(whileStmt.body));
+        return whileStmt;
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.ForStmt forStmt) {
+        forStmt.initializer = rewrite(forStmt.initializer);
+        forStmt.condition = rewrite(forStmt.condition);
+        forStmt.increment = rewrite(forStmt.increment);
+        forStmt.body = orEmpty(rewrite(forStmt.body));
+        return forStmt;
+    }
+
+    @Override
+    public Stmt visitImportStmt(Stmt.ImportStmt importStmt) {
+        return importStmt;
+    }
+
+    @Override
+    public Stmt visitLoopControlStmt(Stmt.LoopControlStmt loopControlStmt) {
+        return loopControlStmt;
+    }
+
+    @Override
+    public Stmt visitFunctionDecl(Stmt.FunctionDecl functionDecl) {
+        if (functionDecl.isLazy()) functionDecl.defer(this);
+        else functionDecl.body = rewrite(functionDecl.body);
+        return functionDecl;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.ReturnStmt returnStmt) {
+        returnStmt.value = rewrite(returnStmt.value);
+        return returnStmt;
+    }
+}
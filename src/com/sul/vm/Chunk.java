@@ -0,0 +1,45 @@
+package com.sul.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) value;
+        lines[count] = line;
+        count++;
+    }
+    void writeShort(int value, int line) {
+        write((value >> 8) & 0xff, line);
+        write(value & 0xff, line);
+    }
+    void patchShort(int offset, int value) {
+        code[offset] = (byte) ((value >> 8) & 0xff);
+        code[offset + 1] = (byte) (value & 0xff);
+    }
+    // numbers and names are shared, prototypes always get their own entry
+    int addConstant(Object value) {
+        if (value instanceof Prototype) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+        Integer index = constantIndex.get(value);
+        if (index != null) return index;
+        constants.add(value);
+        constantIndex.put(value, constants.size() - 1);
+        return constants.size() - 1;
+    }
+}
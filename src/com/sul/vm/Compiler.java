@@ -0,0 +1,426 @@
+package com.sul.vm;
+
+import com.sul.Expr;
+import com.sul.Globals;
+import com.sul.Profiler;
+import com.sul.Stmt;
+import com.sul.Token;
+import com.sul.TokenType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// turns a resolved AST into bytecode, locals keep the slots and captures from the Resolver
+public class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    public static class CompileError extends RuntimeException {
+        public final int line;
+
+        CompileError(int line, String message) {
+            super(message);
+            this.line = line;
+        }
+    }
+    private static class Loop {
+        // where continue loops back to, -1 when it jumps forward to a for loop's increment
+        final int continueStart;
+        final List<Integer> breaks = new ArrayList<>();
+        final List<Integer> continues = new ArrayList<>();
+
+        Loop(int continueStart) {
+            this.continueStart = continueStart;
+        }
+    }
+    private final Chunk chunk = new Chunk();
+    private final Deque<Loop> loops = new ArrayDeque<>();
+    // the VM's global names, the *_GLOBAL operands are their slots
+    private final Globals globals;
+    // slots the script's frame needs for its top-level blocks and loops
+    private int scriptSlots = 0;
+    private int line = 0;
+
+    private Compiler(Globals globals) {
+        this.globals = globals;
+    }
+    public static Prototype compile(List<Stmt> statements, Globals globals) {
+        Compiler compiler = new Compiler(globals);
+        for (Stmt statement : statements) {
+            compiler.compile(statement);
+        }
+        compiler.emit(OpCode.NIL);
+        compiler.emit(OpCode.RETURN);
+        return new Prototype("script", "script", 0, compiler.scriptSlots, new int[0], new int[0], compiler.chunk);
+    }
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitLiteral(Expr.Literal literal) {
+        if (literal.value == null) emit(OpCode.NIL);
+        else if (literal.value.equals(Boolean.TRUE)) emit(OpCode.TRUE);
+        else if (literal.value.equals(Boolean.FALSE)) emit(OpCode.FALSE);
+        else emitWithShort(OpCode.CONSTANT, constant(literal.value));
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(Expr.Binary binary) {
+        // the tree-walker evaluates the right operand first, keep the same order of side effects
+        compile(binary.right);
+        compile(binary.left);
+        line = binary.operator.position;
+        switch (binary.operator.type) {
+            case PLUS -> emit(OpCode.ADD);
+            case MINUS -> emit(OpCode.SUBTRACT);
+            case STAR -> emit(OpCode.MULTIPLY);
+            case SLASH -> emit(OpCode.DIVIDE);
+            case EQUAL_EQUAL -> emit(OpCode.EQUAL);
+            case BANG_EQUAL -> emit(OpCode.NOT_EQUAL);
+            case GREATER -> emit(OpCode.GREATER);
+            case GREATER_EQUAL -> emit(OpCode.GREATER_EQUAL);
+            case LESS -> emit(OpCode.LESS);
+            case LESS_EQUAL -> emit(OpCode.LESS_EQUAL);
+            default -> throw new CompileError(line, "unsupported operator: " + binary.operator.lexeme());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnary(Expr.Unary unary) {
+        compile(unary.expression);
+        line = unary.operator.position;
+        if (unary.operator.type == TokenType.MINUS) emit(OpCode.NEGATE);
+        else emit(OpCode.NOT);
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(Expr.Grouping grouping) {
+        compile(grouping.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitVariable(Expr.Variable variable) {
+        line = variable.name.position;
+        switch (variable.binding) {
+            case LOCAL -> emitWithShort(OpCode.GET_LOCAL, variable.slot);
+            case CELL -> emitWithShort(OpCode.GET_CELL, variable.slot);
+            case UPVALUE -> emitWithShort(OpCode.GET_UPVALUE, variable.slot);
+            case GLOBAL -> emitWithShort(OpCode.GET_GLOBAL, global(variable.name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitAssigment(Expr.Assigment assigment) {
+        assign(assigment);
+        // assignment is an expression evaluating to nihil
+        emit(OpCode.NIL);
+        return null;
+    }
+    private void assign(Expr.Assigment assigment) {
+        compile(assigment.value);
+        line = assigment.name.position;
+        switch (assigment.binding) {
+            case LOCAL -> emitWithShort(OpCode.SET_LOCAL, assigment.slot);
+            case CELL -> emitWithShort(OpCode.SET_CELL, assigment.slot);
+            case UPVALUE -> emitWithShort(OpCode.SET_UPVALUE, assigment.slot);
+            case GLOBAL -> emitWithShort(OpCode.SET_GLOBAL, global(assigment.name));
+        }
+    }
+
+    @Override
+    public Void visitOr(Expr.Or or) {
+        compile(or.left);
+        int right = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.TRUE);
+        int end = emitJump(OpCode.JUMP);
+        patchJump(right);
+        compile(or.right);
+        emit(OpCode.TO_BOOL);
+        patchJump(end);
+        return null;
+    }
+
+    @Override
+    public Void visitAnd(Expr.And and) {
+        compile(and.left);
+        int shortCircuit = emitJump(OpCode.JUMP_IF_FALSE);
+        compile(and.right);
+        emit(OpCode.TO_BOOL);
+        int end = emitJump(OpCode.JUMP);
+        patchJump(shortCircuit);
+        emit(OpCode.FALSE);
+        patchJump(end);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.CallExpr callExpr) {
+        compileCall(callExpr, OpCode.CALL);
+        return null;
+    }
+    private void compileCall(Expr.CallExpr callExpr, byte op) {
+        compile(callExpr.name);
+        for (Expr argument : callExpr.args) {
+            compile(argument);
+        }
+        line = callExpr.closureParent.position;
+        emit(op);
+        emit(callExpr.args.size());
+    }
+
+    @Override
+    public Void visitArrayLiteral(Expr.ArrayLiteral arrayLiteral) {
+        for (Expr element : arrayLiteral.elements) {
+            compile(element);
+        }
+        line = arrayLiteral.bracket.position;
+        emitWithShort(OpCode.ARRAY, arrayLiteral.elements.size());
+        return null;
+    }
+
+    @Override
+    public Void visitMapLiteral(Expr.MapLiteral mapLiteral) {
+        for (int i = 0; i < mapLiteral.keys.size(); i++) {
+            compile(mapLiteral.keys.get(i));
+            compile(mapLiteral.values.get(i));
+        }
+        line = mapLiteral.brace.position;
+        emitWithShort(OpCode.MAP, mapLiteral.keys.size());
+        return null;
+    }
+
+    @Override
+    public Void visitIndex(Expr.Index index) {
+        compile(index.array);
+        compile(index.index);
+        line = index.bracket.position;
+        emit(OpCode.INDEX);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexAssigment(Expr.IndexAssigment indexAssigment) {
+        assign(indexAssigment);
+        emit(OpCode.NIL);
+        return null;
+    }
+    private void assign(Expr.IndexAssigment indexAssigment) {
+        compile(indexAssigment.array);
+        compile(indexAssigment.index);
+        compile(indexAssigment.value);
+        line = indexAssigment.bracket.position;
+        emit(OpCode.SET_INDEX);
+    }
+
+    @Override
+    public Void visitExpression(Stmt.Expression expression) {
+        if (expression.expr instanceof Expr.Assigment) {
+            assign((Expr.Assigment) expression.expr);
+            return null;
+        }
+        if (expression.expr instanceof Expr.IndexAssigment) {
+            assign((Expr.IndexAssigment) expression.expr);
+            return null;
+        }
+        compile(expression.expr);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrint(Stmt.Print print) {
+        compile(print.expr);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitDecl(Stmt.Decl decl) {
+        if (decl.expr == null) emit(OpCode.NIL);
+        else compile(decl.expr);
+        line = decl.identifier.position;
+        if (decl.slot < 0) emitWithShort(OpCode.DEFINE_GLOBAL, global(decl.identifier));
+        else emitWithShort(decl.captured ? OpCode.DEFINE_CELL : OpCode.DEFINE_LOCAL, decl.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Stmt.Block block) {
+        scriptSlots = Math.max(scriptSlots, block.slotCount);
+        for (Stmt stmt : block.stmts) {
+            compile(stmt);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.IfStmt ifStmt) {
+        compile(ifStmt.condition);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        compile(ifStmt.thenStmt);
+        if (ifStmt.elseStmt == null) {
+            patchJump(elseJump);
+            return null;
+        }
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        compile(ifStmt.elseStmt);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.WhileStmt whileStmt) {
+        int loopStart = chunk.count;
+        compile(whileStmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        Loop loop = new Loop(loopStart);
+        loops.push(loop);
+        compile(whileStmt.body);
+        loops.pop();
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        for (int jump : loop.breaks) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.ForStmt forStmt) {
+        scriptSlots = Math.max(scriptSlots, forStmt.slotCount);
+        if (forStmt.initializer != null) compile(forStmt.initializer);
+        int loopStart = chunk.count;
+        int exitJump = -1;
+        if (forStmt.condition != null) {
+            compile(forStmt.condition);
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        }
+        Loop loop = new Loop(-1);
+        loops.push(loop);
+        compile(forStmt.body);
+        loops.pop();
+        for (int jump : loop.continues) {
+            patchJump(jump);
+        }
+        if (forStmt.increment != null) {
+            compile(forStmt.increment);
+            emit(OpCode.POP);
+        }
+        emitLoop(loopStart);
+        if (exitJump >= 0) patchJump(exitJump);
+        for (int jump : loop.breaks) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.ImportStmt importStmt) {
+        line = importStmt.keyWord.position;
+        emitWithShort(OpCode.IMPORT, constant(importStmt));
+        return null;
+    }
+
+    @Override
+    public Void visitLoopControlStmt(Stmt.LoopControlStmt loopControlStmt) {
+        line = loopControlStmt.keyWord.position;
+        Loop loop = loops.peek();
+        if (loopControlStmt.keyWord.type == TokenType.BREAK) loop.breaks.add(emitJump(OpCode.JUMP));
+        else if (loop.continueStart >= 0) emitLoop(loop.continueStart);
+        else loop.continues.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionDecl(Stmt.FunctionDecl functionDecl) {
+        // a deferred body stays unparsed until the function is first called
+        Prototype prototype = functionDecl.isLazy() ? new Prototype(functionDecl)
+                : new Prototype(functionDecl.name.lexeme(), Profiler.label(functionDecl.name),
+                        functionDecl.args.size(), functionDecl.slotCount, functionDecl.captures,
+                        functionDecl.cellParams, body(functionDecl, globals));
+        line = functionDecl.name.position;
+        if (functionDecl.captured) {
+            // the cell exists before the closure, so a function can capture itself
+            emit(OpCode.NIL);
+            emitWithShort(OpCode.DEFINE_CELL, functionDecl.slot);
+            emitWithShort(OpCode.CLOSURE, constant(prototype));
+            emitWithShort(OpCode.SET_CELL, functionDecl.slot);
+            return null;
+        }
+        emitWithShort(OpCode.CLOSURE, constant(prototype));
+        if (functionDecl.slot >= 0) emitWithShort(OpCode.DEFINE_LOCAL, functionDecl.slot);
+        else emitWithShort(OpCode.DEFINE_GLOBAL, global(functionDecl.name));
+        return null;
+    }
+
+    // parses a deferred body first, its slot count and cell parameters are known only after that
+    static Chunk body(Stmt.FunctionDecl functionDecl, Globals globals) {
+        Compiler function = new Compiler(globals);
+        function.line = functionDecl.name.position;
+        for (Stmt stmt : functionDecl.body()) {
+            function.compile(stmt);
+        }
+        function.emit(OpCode.NIL);
+        function.emit(OpCode.RETURN);
+        return function.chunk;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.ReturnStmt returnStmt) {
+        Expr.CallExpr tailCall = returnStmt.tailCallExpr();
+        if (tailCall != null) {
+            compileCall(tailCall, OpCode.TAIL_CALL);
+            // only reached after a native callee, it returns the native's result
+            emit(OpCode.RETURN);
+            return null;
+        }
+        if (returnStmt.value == null) emit(OpCode.NIL);
+        else compile(returnStmt.value);
+        line = returnStmt.keyWord.position;
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    private void emit(int value) {
+        chunk.write(value, line);
+    }
+    private void emitWithShort(byte op, int operand) {
+        emit(op);
+        chunk.writeShort(operand, line);
+    }
+    private int emitJump(byte op) {
+        emit(op);
+        chunk.writeShort(0xffff, line);
+        return chunk.count - 2;
+    }
+    private void patchJump(int offset) {
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) throw new CompileError(line, "too much code to jump over");
+        chunk.patchShort(offset, jump);
+    }
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = chunk.count - loopStart + 2;
+        if (offset > 0xffff) throw new CompileError(line, "loop body too large");
+        chunk.writeShort(offset, line);
+    }
+    private int global(Token name) {
+        int slot = globals.slot(name.symbol());
+        if (slot > 0xffff) throw new CompileError(line, "too many global names");
+        return slot;
+    }
+    private int constant(Object value) {
+        int index = chunk.addConstant(value);
+        if (index > 0xffff) throw new CompileError(line, "too many constants in one function");
+        return index;
+    }
+}
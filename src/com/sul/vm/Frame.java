@@ -0,0 +1,19 @@
+package com.sul.vm;
+
+import com.sul.Cell;
+
+// same layout the Resolver assigns for the tree-walker: one flat frame per call, and one for top-level code
+final class Frame {
+    private static final Cell[] NO_UPVALUES = new Cell[0];
+    final Object[] slots;
+    // cells the running closure captured from enclosing frames
+    final Cell[] upvalues;
+
+    Frame(Cell[] upvalues, int size) {
+        this.upvalues = upvalues;
+        this.slots = new Object[size];
+    }
+    Frame(int size) {
+        this(NO_UPVALUES, size);
+    }
+}
@@ -0,0 +1,49 @@
+package com.sul.vm;
+
+// one byte per instruction, operands follow as unsigned bytes/shorts in big endian order
+final class OpCode {
+    private OpCode() {
+    }
+    static final byte CONSTANT = 0;      // u16 constant index
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;     // u16 slot
+    static final byte GET_CELL = 6;      // u16 slot holding a Cell
+    static final byte SET_LOCAL = 7;     // u16 slot, pops the value
+    static final byte DEFINE_LOCAL = 8;  // u16 slot, pops the value
+    static final byte GET_GLOBAL = 9;    // u16 global slot
+    static final byte SET_GLOBAL = 10;   // u16 global slot, pops the value
+    static final byte DEFINE_GLOBAL = 11; // u16 global slot, pops the value
+    static final byte ADD = 12;
+    static final byte SUBTRACT = 13;
+    static final byte MULTIPLY = 14;
+    static final byte DIVIDE = 15;
+    static final byte EQUAL = 16;
+    static final byte NOT_EQUAL = 17;
+    static final byte GREATER = 18;
+    static final byte GREATER_EQUAL = 19;
+    static final byte LESS = 20;
+    static final byte LESS_EQUAL = 21;
+    static final byte NEGATE = 22;
+    static final byte NOT = 23;
+    static final byte TO_BOOL = 24;
+    static final byte JUMP = 25;          // u16 forward offset
+    static final byte JUMP_IF_FALSE = 26; // u16 forward offset, pops the condition
+    static final byte LOOP = 27;          // u16 backward offset
+    static final byte CALL = 28;          // u8 argument count
+    static final byte RETURN = 29;
+    static final byte PRINT = 30;
+    static final byte CLOSURE = 31;       // u16 prototype constant
+    static final byte TAIL_CALL = 32;     // u8 argument count, reuses the caller's CallFrame, always followed by RETURN
+    static final byte SET_CELL = 33;      // u16 slot holding a Cell, pops the value
+    static final byte IMPORT = 34;        // u16 import statement constant
+    static final byte DEFINE_CELL = 35;   // u16 slot, pops the value into a fresh Cell
+    static final byte GET_UPVALUE = 36;   // u16 index into the closure's cells
+    static final byte SET_UPVALUE = 37;   // u16 index into the closure's cells, pops the value
+    static final byte ARRAY = 38;         // u16 element count, pops the elements
+    static final byte INDEX = 39;         // pops index and array
+    static final byte SET_INDEX = 40;     // pops value, index and array
+    static final byte MAP = 41;           // u16 entry count, pops key and value of each entry
+}
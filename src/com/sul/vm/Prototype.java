@@ -0,0 +1,59 @@
+package com.sul.vm;
+
+import com.sul.Globals;
+import com.sul.Profiler;
+import com.sul.Stmt;
+
+import java.util.Arrays;
+
+// compiled form of a function or of a whole script
+final class Prototype {
+    final String name;
+    // name:line shown by the profiler
+    final String label;
+    final int arity;
+    // Stmt.FunctionDecl.captures, a deferred body is top-level and captures nothing
+    final int[] captures;
+    // the rest is filled in by load() when the body was deferred
+    int slotCount;
+    int[] cellParams;
+    byte[] code;
+    int[] lines;
+    Object[] constants;
+    // a -Dsul.lazy body that was not called yet, null once it is compiled
+    private Stmt.FunctionDecl deferred;
+
+    Prototype(String name, String label, int arity, int slotCount, int[] captures, int[] cellParams, Chunk chunk) {
+        this.name = name;
+        this.label = label;
+        this.arity = arity;
+        this.captures = captures;
+        fill(slotCount, cellParams, chunk);
+    }
+    // only the header is known, the body is parsed and compiled by the first call
+    Prototype(Stmt.FunctionDecl deferred) {
+        this.name = deferred.name.lexeme();
+        this.label = Profiler.label(deferred.name);
+        this.arity = deferred.args.size();
+        this.captures = deferred.captures;
+        this.deferred = deferred;
+    }
+    private void fill(int slotCount, int[] cellParams, Chunk chunk) {
+        this.slotCount = slotCount;
+        this.cellParams = cellParams;
+        this.code = Arrays.copyOf(chunk.code, chunk.count);
+        this.lines = Arrays.copyOf(chunk.lines, chunk.count);
+        this.constants = chunk.constants.toArray();
+    }
+
+    boolean isDeferred() {
+        return deferred != null;
+    }
+    // a syntax error in the body is a runtime error of the call, like in the tree-walker
+    void load(Globals globals) {
+        Stmt.FunctionDecl function = deferred;
+        Chunk chunk = Compiler.body(function, globals);
+        fill(function.slotCount, function.cellParams, chunk);
+        deferred = null;
+    }
+}
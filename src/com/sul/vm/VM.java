@@ -0,0 +1,489 @@
+package com.sul.vm;
+
+import com.sul.Cell;
+import com.sul.Globals;
+import com.sul.Imports;
+import com.sul.Interpreter;
+import com.sul.NativeRegistry;
+import com.sul.OutputSink;
+import com.sul.Profiler;
+import com.sul.Rope;
+import com.sul.RuntimeError;
+import com.sul.Stmt;
+import com.sul.SulArray;
+import com.sul.SulCallable;
+import com.sul.SulMap;
+import com.sul.Symbol;
+import com.sul.Token;
+import com.sul.TokenType;
+import com.sul.opt.PassManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// stack based engine, Sul calls push a CallFrame instead of recursing on the Java stack
+public class VM {
+    // Sul calls deeper than this raise a runtime error instead of growing the frame array forever
+    private static final int MAX_FRAMES = Integer.getInteger("sul.vm.maxFrames", 1_000_000);
+    private static final class CallFrame {
+        Prototype function;
+        int ip;
+        Frame env;
+    }
+    // fills the global slots of symbols that were never declared
+    private static final Object UNDECLARED = new Object();
+    // slots are numbered by names, which the Compiler fills as it meets global names
+    private final Globals names = new Globals();
+    private Object[] globals = new Object[0];
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Profiler profiler = null;
+    private final Imports imports;
+    private final OutputSink out;
+
+    public VM(PassManager optimizer, OutputSink out) {
+        this.out = out;
+        imports = new Imports(optimizer);
+        for (Map.Entry<String, SulCallable> natives : NativeRegistry.builtinNatives().entrySet()) {
+            int slot = names.slot(Symbol.of(natives.getKey()));
+            growGlobals();
+            globals[slot] = natives.getValue();
+        }
+    }
+    // called after each compile, so every slot an instruction names exists before it runs
+    private void growGlobals() {
+        int size = globals.length;
+        if (size >= names.size()) return;
+        globals = Arrays.copyOf(globals, Math.max(names.size(), Math.max(64, size * 2)));
+        Arrays.fill(globals, size, globals.length, UNDECLARED);
+    }
+    private Prototype compile(List<Stmt> statements) {
+        Prototype script = Compiler.compile(statements, names);
+        growGlobals();
+        return script;
+    }
+    // mirrors every Sul call on the profiler's shadow stack
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+    public void interpret(List<Stmt> statements) {
+        Prototype script = compile(statements);
+        try {
+            run(script);
+        } finally {
+            sp = 0;
+            frameCount = 0;
+        }
+    }
+    private CallFrame pushFrame(Prototype function, Frame env, int line) {
+        if (frameCount == MAX_FRAMES) throw error(line, "stack overflow");
+        if (frameCount == frames.length) frames = Arrays.copyOf(frames, frameCount * 2);
+        CallFrame frame = frames[frameCount];
+        if (frame == null) frame = frames[frameCount] = new CallFrame();
+        frameCount++;
+        frame.function = function;
+        frame.ip = 0;
+        frame.env = env;
+        return frame;
+    }
+    private void push(Object value) {
+        if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+        stack[sp++] = value;
+    }
+
+    // runs nested inside a GET_GLOBAL or SET_GLOBAL, on top of the frames already there
+    private void runModule(List<Stmt> statements) {
+        run(compile(statements));
+    }
+    private void run(Prototype script) {
+        int base = frameCount;
+        CallFrame frame = pushFrame(script, null, 0);
+        byte[] code = script.code;
+        Object[] constants = script.constants;
+        int[] lines = script.lines;
+        int ip = 0;
+        // top-level blocks and loops keep their locals here
+        Frame env = new Frame(script.slotCount);
+        for (;;) {
+            byte op = code[ip++];
+            switch (op) {
+                case OpCode.CONSTANT: {
+                    push(constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.NIL: push(null); break;
+                case OpCode.TRUE: push(true); break;
+                case OpCode.FALSE: push(false); break;
+                case OpCode.POP: sp--; break;
+                case OpCode.GET_LOCAL: {
+                    push(env.slots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_LOCAL:
+                case OpCode.DEFINE_LOCAL: {
+                    env.slots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)] = stack[--sp];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_CELL: {
+                    push(((Cell) env.slots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]).value);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_CELL: {
+                    ((Cell) env.slots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]).value = stack[--sp];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.DEFINE_CELL: {
+                    env.slots[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)] = new Cell(stack[--sp]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    push(env.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)].value);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    env.upvalues[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)].value = stack[--sp];
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object value = globals[slot];
+                    if (value == UNDECLARED && imports.resolve(names.name(slot), this::runModule)) value = globals[slot];
+                    if (value == UNDECLARED)
+                        throw error(lines[ip - 1], "cannot use not declared variable");
+                    push(value);
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globals[slot] == UNDECLARED) imports.resolve(names.name(slot), this::runModule);
+                    if (globals[slot] == UNDECLARED)
+                        throw error(lines[ip - 1], "Failed to assign variable, it doesn't exist: " + names.name(slot));
+                    globals[slot] = stack[--sp];
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globals[slot] != UNDECLARED && !NativeRegistry.isNative(globals[slot]))
+                        throw error(lines[ip - 1], "variable: " + names.name(slot) + " already exists");
+                    globals[slot] = stack[--sp];
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object left = stack[--sp];
+                    Object right = stack[sp - 1];
+                    if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (Double) left + (Double) right;
+                    } else {
+                        stack[sp - 1] = add(left, right, lines[ip - 1]);
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    Object left = stack[--sp];
+                    Object right = stack[sp - 1];
+                    stack[sp - 1] = number(left, lines[ip - 1]) - number(right, lines[ip - 1]);
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    Object left = stack[--sp];
+                    Object right = stack[sp - 1];
+                    stack[sp - 1] = number(left, lines[ip - 1]) * number(right, lines[ip - 1]);
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    Object left = stack[--sp];
+                    Object right = stack[sp - 1];
+                    double divisor = number(right, lines[ip - 1]);
+                    if (divisor == 0) throw error(lines[ip - 1], "cannot divide by 0");
+                    stack[sp - 1] = number(left, lines[ip - 1]) / divisor;
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object left = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(left, stack[sp - 1]);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object left = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(left, stack[sp - 1]);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    Object left = stack[--sp];
+                    stack[sp - 1] = number(left, lines[ip - 1]) > number(stack[sp - 1], lines[ip - 1]);
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    Object left = stack[--sp];
+                    stack[sp - 1] = number(left, lines[ip - 1]) >= number(stack[sp - 1], lines[ip - 1]);
+                    break;
+                }
+                case OpCode.LESS: {
+                    Object left = stack[--sp];
+                    stack[sp - 1] = number(left, lines[ip - 1]) < number(stack[sp - 1], lines[ip - 1]);
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    Object left = stack[--sp];
+                    stack[sp - 1] = number(left, lines[ip - 1]) <= number(stack[sp - 1], lines[ip - 1]);
+                    break;
+                }
+                case OpCode.NEGATE: {
+                    stack[sp - 1] = -number(stack[sp - 1], lines[ip - 1]);
+                    break;
+                }
+                case OpCode.NOT: {
+                    Object value = stack[sp - 1];
+                    if (value instanceof CharSequence) throw error(lines[ip - 1], "operator must be a number");
+                    stack[sp - 1] = !Interpreter.isTruthy(value);
+                    break;
+                }
+                case OpCode.TO_BOOL: {
+                    stack[sp - 1] = Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                }
+                case OpCode.JUMP: {
+                    ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    if (Interpreter.isTruthy(stack[--sp])) ip += 2;
+                    else ip += 2 + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                }
+                case OpCode.LOOP: {
+                    ip += 2 - (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff));
+                    break;
+                }
+                case OpCode.CALL: {
+                    int argc = code[ip++] & 0xff;
+                    Object callee = stack[sp - argc - 1];
+                    if (callee instanceof VmFunction) {
+                        VmFunction function = (VmFunction) callee;
+                        Prototype prototype = function.prototype;
+                        if (argc != prototype.arity) throw arityError(lines[ip - 1], prototype.arity, argc);
+                        Frame callEnv = frame(function, argc);
+                        frame.ip = ip;
+                        frame.env = env;
+                        frame = pushFrame(prototype, callEnv, lines[ip - 1]);
+                        if (profiler != null) profiler.enter(prototype.label);
+                        code = prototype.code;
+                        constants = prototype.constants;
+                        lines = prototype.lines;
+                        ip = 0;
+                        env = callEnv;
+                    } else if (callee instanceof SulCallable) {
+                        SulCallable function = (SulCallable) callee;
+                        if (argc != function.arity()) throw arityError(lines[ip - 1], function.arity(), argc);
+                        Object result = callNative(function, argc, lines[ip - 1]);
+                        sp -= argc + 1;
+                        push(result);
+                    } else {
+                        throw error(lines[ip - 1], "Can only call functions and classes.");
+                    }
+                    break;
+                }
+                case OpCode.TAIL_CALL: {
+                    int argc = code[ip++] & 0xff;
+                    Object callee = stack[sp - argc - 1];
+                    if (callee instanceof VmFunction) {
+                        VmFunction function = (VmFunction) callee;
+                        Prototype prototype = function.prototype;
+                        if (argc != prototype.arity) throw arityError(lines[ip - 1], prototype.arity, argc);
+                        Frame callEnv = frame(function, argc);
+                        // the returning function is done with its frame, the callee takes it over
+                        frame.function = prototype;
+                        if (profiler != null) profiler.replace(prototype.label);
+                        code = prototype.code;
+                        constants = prototype.constants;
+                        lines = prototype.lines;
+                        ip = 0;
+                        env = callEnv;
+                        break;
+                    }
+                    if (!(callee instanceof SulCallable)) throw error(lines[ip - 1], "Can only call functions and classes.");
+                    SulCallable function = (SulCallable) callee;
+                    if (argc != function.arity()) throw arityError(lines[ip - 1], function.arity(), argc);
+                    Object result = callNative(function, argc, lines[ip - 1]);
+                    sp -= argc + 1;
+                    push(result);
+                    // the RETURN the compiler put after TAIL_CALL returns the native's result
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    frameCount--;
+                    if (frameCount == base) return;
+                    if (profiler != null) profiler.exit();
+                    frame = frames[frameCount - 1];
+                    code = frame.function.code;
+                    constants = frame.function.constants;
+                    lines = frame.function.lines;
+                    ip = frame.ip;
+                    env = frame.env;
+                    push(result);
+                    break;
+                }
+                case OpCode.PRINT: {
+                    out.println(stack[--sp]);
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    Prototype prototype = (Prototype) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    int[] captures = prototype.captures;
+                    Cell[] upvalues = new Cell[captures.length];
+                    for (int i = 0; i < captures.length; i++) {
+                        int capture = captures[i];
+                        upvalues[i] = capture >= 0 ? (Cell) env.slots[capture] : env.upvalues[-1 - capture];
+                    }
+                    push(new VmFunction(prototype, upvalues));
+                    break;
+                }
+                case OpCode.ARRAY: {
+                    int count = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    SulArray array = SulArray.of(stack, sp - count, count);
+                    sp -= count;
+                    push(array);
+                    break;
+                }
+                case OpCode.MAP: {
+                    int count = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    SulMap map = new SulMap();
+                    for (int i = sp - 2 * count; i < sp; i += 2) {
+                        map.put(key(stack[i], lines[ip - 1]), stack[i + 1]);
+                    }
+                    sp -= 2 * count;
+                    push(map);
+                    break;
+                }
+                case OpCode.INDEX: {
+                    Object index = stack[--sp];
+                    if (stack[sp - 1] instanceof SulMap) {
+                        stack[sp - 1] = ((SulMap) stack[sp - 1]).get(key(index, lines[ip - 1]));
+                        break;
+                    }
+                    SulArray array = array(stack[sp - 1], lines[ip - 1]);
+                    stack[sp - 1] = array.get(slot(array, index, lines[ip - 1]));
+                    break;
+                }
+                case OpCode.SET_INDEX: {
+                    Object value = stack[--sp];
+                    Object index = stack[--sp];
+                    if (stack[sp - 1] instanceof SulMap) {
+                        ((SulMap) stack[--sp]).put(key(index, lines[ip - 1]), value);
+                        break;
+                    }
+                    SulArray array = array(stack[--sp], lines[ip - 1]);
+                    array.set(slot(array, index, lines[ip - 1]), value);
+                    break;
+                }
+                case OpCode.IMPORT: {
+                    imports.add((Stmt.ImportStmt) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                    ip += 2;
+                    break;
+                }
+                default:
+                    throw error(lines[ip - 1], "unknown opcode: " + op);
+            }
+        }
+    }
+
+    // natives do not need the tree-walker, and the fixed-arity entry points take the arguments off the stack
+    private Object callNative(SulCallable function, int argc, int line) {
+        try {
+            return callNative(function, argc);
+        } catch (RuntimeError error) {
+            // a native's error gets the line of the call that reached it
+            throw error.token != null ? error : error(line, error.getMessage());
+        }
+    }
+    private Object callNative(SulCallable function, int argc) {
+        int base = sp - argc;
+        switch (argc) {
+            case 0: return function.call0(null);
+            case 1: return function.call1(null, stack[base]);
+            case 2: return function.call2(null, stack[base], stack[base + 1]);
+            case 3: return function.call3(null, stack[base], stack[base + 1], stack[base + 2]);
+            case 4: return function.call4(null, stack[base], stack[base + 1], stack[base + 2], stack[base + 3]);
+            default: {
+                List<Object> arguments = new ArrayList<>(argc);
+                for (int i = base; i < sp; i++) {
+                    arguments.add(stack[i]);
+                }
+                return function.call(null, arguments);
+            }
+        }
+    }
+    // moves the arguments off the stack into the callee's frame, boxing the ones a closure captures
+    private Frame frame(VmFunction function, int argc) {
+        Prototype prototype = function.prototype;
+        if (prototype.isDeferred()) {
+            prototype.load(names);
+            // the body may name globals nothing compiled before it did
+            growGlobals();
+        }
+        Frame callEnv = new Frame(function.upvalues, prototype.slotCount);
+        System.arraycopy(stack, sp - argc, callEnv.slots, 0, argc);
+        sp -= argc + 1;
+        for (int slot : prototype.cellParams) {
+            callEnv.slots[slot] = new Cell(callEnv.slots[slot]);
+        }
+        return callEnv;
+    }
+    private static SulArray array(Object value, int line) {
+        if (value instanceof SulArray) return (SulArray) value;
+        throw error(line, "can only index arrays and maps");
+    }
+    private static Object key(Object key, int line) {
+        if (SulMap.isKey(key)) return key;
+        throw error(line, "map keys must be numbers, strings, booleans or nihil");
+    }
+    private static int slot(SulArray array, Object index, int line) {
+        if (!(index instanceof Double)) throw error(line, "index must be a number");
+        int slot = array.slot((Double) index);
+        if (slot < 0) {
+            throw error(line, "index " + Interpreter.makeValidString(index) + " out of bounds for length " + array.size());
+        }
+        return slot;
+    }
+    private static double number(Object value, int line) {
+        if (value instanceof Double) return (Double) value;
+        throw error(line, "operator must be a number");
+    }
+    private static Object add(Object left, Object right, int line) {
+        if (left instanceof CharSequence && right instanceof CharSequence) {
+            return Rope.concat((CharSequence) left, (CharSequence) right);
+        }
+        if (left instanceof Double && right instanceof CharSequence) {
+            return Rope.concat(Interpreter.makeValidString(left), (CharSequence) right);
+        }
+        if (left instanceof CharSequence && right instanceof Double) {
+            return Rope.concat((CharSequence) left, Interpreter.makeValidString(right));
+        }
+        throw error(line, "cannot add two values");
+    }
+    private static RuntimeError arityError(int line, int arity, int argc) {
+        return error(line, "Expected " + arity + " arguments but got " + argc + ".");
+    }
+    private static RuntimeError error(int line, String message) {
+        return new RuntimeError(new Token(TokenType.EOF, line, "", null), message);
+    }
+}
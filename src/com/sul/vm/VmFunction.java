@@ -0,0 +1,17 @@
+package com.sul.vm;
+
+import com.sul.Cell;
+
+final class VmFunction {
+    final Prototype prototype;
+    final Cell[] upvalues;
+
+    VmFunction(Prototype prototype, Cell[] upvalues) {
+        this.prototype = prototype;
+        this.upvalues = upvalues;
+    }
+    @Override
+    public String toString() {
+        return "<fn " + prototype.name + ">";
+    }
+}
@@ -0,0 +1,33 @@
+#!/bin/bash
+# Runs every tests/*.sul and compares stdout, stderr and the exit code with tests/<name>.expected.
+# Each line of tests/<name>.args is one set of flags the script runs with, -D options go to the JVM;
+# a run with --engine flags uses tests/<name>.engine.expected instead when that file exists.
+# usage: tests/run.sh <directory with the compiled classes>
+classes=${1:?usage: tests/run.sh <classes directory>}
+java=${JAVA:-java}
+dir=$(cd "$(dirname "$0")" && pwd)
+failed=0
+for script in "$dir"/*.sul; do
+    name=${script%.sul}
+    args=$([ -f "$name.args" ] && cat "$name.args" || echo "")
+    while IFS= read -r line || [ -n "$line" ]; do
+        jvm=() sul=() engine=
+        for word in $line; do
+            case $word in
+                -D*) jvm+=("$word") ;;
+                --*) sul+=("$word"); [ -z "$engine" ] && engine=${word#--} ;;
+                *) sul+=("$word") ;;
+            esac
+        done
+        expected=$name.expected
+        [ -n "$engine" ] && [ -f "$name.$engine.expected" ] && expected=$name.$engine.expected
+        actual=$("$java" -Dsul.cache=false "${jvm[@]}" -cp "$classes" com.sul.Sul "${sul[@]}" "$script" 2>&1; echo "exit $?")
+        if [ "$actual" != "$(cat "$expected")" ]; then
+            echo "FAIL $(basename "$script") $line"
+            diff <(echo "$actual") "$expected" | head -10
+            failed=1
+        fi
+    done <<< "$args"
+done
+[ $failed = 0 ] && echo "all passed"
+exit $failed